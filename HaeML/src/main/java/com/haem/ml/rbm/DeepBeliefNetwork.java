@@ -0,0 +1,237 @@
+package com.haem.ml.rbm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * A stack of restricted Boltzmann machines, where the hidden layer of each machine is the visible
+ * layer of the next. The stack is trained greedily, one layer at a time, with
+ * {@link RBMTrainer}: the inputs of an upper layer are the hidden probabilities of the trained
+ * layers below it. Those inputs are computed in blocks and cached in single precision, and the
+ * cache of a layer is dropped as soon as the inputs of the next layer have been computed from it,
+ * so training never holds more than two layers of features.
+ * 
+ * @author heikki
+ *
+ */
+public class DeepBeliefNetwork {
+  /**
+   * Number of vectors passed through the stack together.
+   */
+  public static final int BLOCK_SIZE = RBMFeatureExtractor.BLOCK_SIZE;
+
+  private final List<RestrictedBoltzmannMachine> layers;
+  /**
+   * Idle pairs of scratch blocks of BLOCK_SIZE vectors as wide as the widest layer: the two
+   * blocks a block of vectors passes between on its way up the stack, or its packed inputs and
+   * outputs. A computation takes a pair for its duration, so concurrent computations, and
+   * computations started by a pool thread while it waits for another, never share blocks; the
+   * pool only grows to the largest number that ever ran at once.
+   */
+  private final Deque<double[][]> scratch = new ArrayDeque<>();
+  private final int blockLength;
+
+  /**
+   * Creates a network of double precision layers.
+   * 
+   * @param layerSizes the unit counts from the visible layer up, at least two
+   */
+  public DeepBeliefNetwork(int... layerSizes) {
+    this(Precision.DOUBLE, layerSizes);
+  }
+
+  /**
+   * Creates a network whose layers store their weights in the given precision.
+   * 
+   * @param layerSizes the unit counts from the visible layer up, at least two
+   */
+  public DeepBeliefNetwork(Precision precision, int... layerSizes) {
+    if (layerSizes.length < 2) {
+      throw new IllegalArgumentException("A network needs at least two layers, got "
+          + layerSizes.length);
+    }
+    List<RestrictedBoltzmannMachine> machines = new ArrayList<>();
+    for (int k = 0; k + 1 < layerSizes.length; k++) {
+      machines.add(new RestrictedBoltzmannMachine(layerSizes[k], layerSizes[k + 1], precision));
+    }
+    this.layers = Collections.unmodifiableList(machines);
+    int width = 0;
+    for (int size : layerSizes) {
+      width = Math.max(width, size);
+    }
+    this.blockLength = BLOCK_SIZE * width;
+  }
+
+  /**
+   * Returns the machines of the stack, from the bottom up.
+   */
+  public List<RestrictedBoltzmannMachine> getLayers() {
+    return layers;
+  }
+
+  public int visibleCount() {
+    return layers.get(0).visibleCount();
+  }
+
+  public int hiddenCount() {
+    return layers.get(layers.size() - 1).hiddenCount();
+  }
+
+  /**
+   * Trains the stack greedily, bottom layer first. Each layer gets its own trainer over the
+   * features of the layers below, with the same data lists, so the minibatch structure is kept.
+   * Like {@link RBMTrainer}, this moves test vectors out of the given lists.
+   * 
+   * @param learningRate the initial learning rate of every layer
+   * @param iterations the number of iterations per layer
+   * @param seed the seed of the first layer; layer k uses seed + k
+   * @param setup configures each trainer before it is initialized, for example its thread count
+   * @param dataSets the training data, as for {@link RBMTrainer}
+   */
+  public void train(double learningRate, int iterations, long seed, Consumer<RBMTrainer> setup,
+      List<List<double[]>> dataSets) {
+    List<List<double[]>> input = dataSets;
+    for (int k = 0; k < layers.size(); k++) {
+      RestrictedBoltzmannMachine layer = layers.get(k);
+      try (RBMTrainer trainer = new RBMTrainer(learningRate, layer, toArray(input))) {
+        setup.accept(trainer);
+        trainer.initialize(seed + k);
+        for (int i = 0; i < iterations; i++) {
+          trainer.iterate();
+        }
+      }
+      if (k + 1 < layers.size()) {
+        List<List<double[]>> next = new ArrayList<>();
+        for (List<double[]> list : input) {
+          next.add(features(layer, list));
+        }
+        input = next;
+      }
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static List<double[]>[] toArray(List<List<double[]>> lists) {
+    return lists.toArray(new List[lists.size()]);
+  }
+
+  /**
+   * Computes the hidden probabilities of a layer for a whole list, in parallel blocks, into a
+   * single precision list.
+   */
+  private FloatRows features(RestrictedBoltzmannMachine layer, List<double[]> input) {
+    int visibleCount = layer.visibleCount();
+    int hiddenCount = layer.hiddenCount();
+    FloatRows ret = new FloatRows(input.size(), hiddenCount);
+    int blocks = (input.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    IntStream.range(0, blocks).parallel().forEach(block -> {
+      int start = block * BLOCK_SIZE;
+      int rows = Math.min(BLOCK_SIZE, input.size() - start);
+      double[][] pair = borrowScratch();
+      try {
+        double[] packed = pair[0];
+        for (int r = 0; r < rows; r++) {
+          System.arraycopy(input.get(start + r), 0, packed, r * visibleCount, visibleCount);
+        }
+        double[] out = pair[1];
+        layer.hiddenProbabilities(packed, out, rows);
+        ret.setRows(start, out, rows);
+      } finally {
+        returnScratch(pair);
+      }
+    });
+    return ret;
+  }
+
+  private double[][] borrowScratch() {
+    double[][] ret;
+    synchronized (scratch) {
+      ret = scratch.poll();
+    }
+    return ret != null ? ret : new double[2][blockLength];
+  }
+
+  private void returnScratch(double[][] pair) {
+    synchronized (scratch) {
+      scratch.push(pair);
+    }
+  }
+
+  /**
+   * Returns the top layer probabilities of a single vector.
+   */
+  public double[] transform(double[] visible) {
+    double[] ret = new double[hiddenCount()];
+    transform(visible, ret, 1);
+    return ret;
+  }
+
+  /**
+   * Passes a flat batch through the whole stack. The batch is processed BLOCK_SIZE vectors at a
+   * time, and each block goes through every layer before the next block starts, so the
+   * intermediate layers of a block stay in cache and are never materialized for the whole batch.
+   * 
+   * @param visible a batchSize x visibleCount() matrix
+   * @param out a batchSize x hiddenCount() matrix for the top layer probabilities
+   * @param batchSize the number of vectors in the batch
+   */
+  public void transform(double[] visible, double[] out, int batchSize) {
+    double[][] pair = borrowScratch();
+    try {
+      double[] from = pair[0];
+      double[] to = pair[1];
+      int visibleCount = visibleCount();
+      int hiddenCount = hiddenCount();
+      for (int start = 0; start < batchSize; start += BLOCK_SIZE) {
+        int rows = Math.min(BLOCK_SIZE, batchSize - start);
+        System.arraycopy(visible, start * visibleCount, from, 0, rows * visibleCount);
+        for (RestrictedBoltzmannMachine layer : layers) {
+          layer.hiddenProbabilities(from, to, rows);
+          double[] swap = from;
+          from = to;
+          to = swap;
+        }
+        System.arraycopy(from, 0, out, start * hiddenCount, rows * hiddenCount);
+      }
+    } finally {
+      returnScratch(pair);
+    }
+  }
+
+  /**
+   * Returns the top layer probabilities of every vector of a batch, transforming blocks of
+   * BLOCK_SIZE vectors in parallel on the common fork/join pool.
+   */
+  public double[][] transform(double[][] batch) {
+    double[][] ret = new double[batch.length][];
+    int visibleCount = visibleCount();
+    int hiddenCount = hiddenCount();
+    int blocks = (batch.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    IntStream.range(0, blocks).parallel().forEach(block -> {
+      int start = block * BLOCK_SIZE;
+      int rows = Math.min(BLOCK_SIZE, batch.length - start);
+      double[][] pair = borrowScratch();
+      try {
+        double[] packed = pair[0];
+        for (int r = 0; r < rows; r++) {
+          System.arraycopy(batch[start + r], 0, packed, r * visibleCount, visibleCount);
+        }
+        double[] out = pair[1];
+        transform(packed, out, rows);
+        for (int r = 0; r < rows; r++) {
+          double[] row = new double[hiddenCount];
+          System.arraycopy(out, r * hiddenCount, row, 0, hiddenCount);
+          ret[start + r] = row;
+        }
+      } finally {
+        returnScratch(pair);
+      }
+    });
+    return ret;
+  }
+}
@@ -0,0 +1,69 @@
+package com.haem.ml.rbm;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list of equally long vectors stored in single precision in one flat array, at half the
+ * memory of a list of double arrays and without a header per vector. Elements are widened to
+ * new double arrays when read. The list supports removal, since {@link RBMTrainer} moves test
+ * vectors out of its training lists.
+ * 
+ * @author heikki
+ *
+ */
+class FloatRows extends AbstractList<double[]> implements RandomAccess {
+  private final float[] data;
+  private final int width;
+  private int size;
+
+  FloatRows(int size, int width) {
+    this.data = new float[size * width];
+    this.width = width;
+    this.size = size;
+  }
+
+  /**
+   * Stores rows [first, first + count) from a flat count x width matrix.
+   */
+  void setRows(int first, double[] rows, int count) {
+    int offset = first * width;
+    for (int k = 0; k < count * width; k++) {
+      data[offset + k] = (float) rows[k];
+    }
+  }
+
+  /**
+   * Copies rows [first, first + count) into a flat count x width matrix.
+   */
+  void getRows(int first, double[] rows, int count) {
+    int offset = first * width;
+    for (int k = 0; k < count * width; k++) {
+      rows[k] = data[offset + k];
+    }
+  }
+
+  @Override
+  public double[] get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+    }
+    double[] ret = new double[width];
+    getRows(index, ret, 1);
+    return ret;
+  }
+
+  @Override
+  public double[] remove(int index) {
+    double[] ret = get(index);
+    System.arraycopy(data, (index + 1) * width, data, index * width, (size - index - 1) * width);
+    size--;
+    modCount++;
+    return ret;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,44 @@
+package com.haem.ml.rbm;
+
+import java.util.Arrays;
+
+/**
+ * Accumulator for the weight and bias adjustments of a {@link RestrictedBoltzmannMachine}. The
+ * weight adjustments use the same flat visible x hidden layout and the same precision as the
+ * machine.
+ * 
+ * @author heikki
+ *
+ */
+class Gradient {
+  final WeightMatrix weights;
+  final double[] visibleBias;
+  final double[] hiddenBias;
+
+  Gradient(int visible, int hidden, Precision precision) {
+    this.weights = WeightMatrix.create(precision, visible, hidden);
+    this.visibleBias = new double[visible];
+    this.hiddenBias = new double[hidden];
+  }
+
+  /**
+   * Adds the adjustments of another gradient into this one.
+   */
+  void add(Gradient other) {
+    weights.add(other.weights);
+    add(visibleBias, other.visibleBias);
+    add(hiddenBias, other.hiddenBias);
+  }
+
+  void clear() {
+    weights.clear();
+    Arrays.fill(visibleBias, 0);
+    Arrays.fill(hiddenBias, 0);
+  }
+
+  private static void add(double[] to, double[] from) {
+    for (int i = 0; i < to.length; i++) {
+      to[i] += from[i];
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.haem.ml.rbm;
+
+/**
+ * Storage precision of the weights of a {@link RestrictedBoltzmannMachine} and of the weight
+ * gradients and momentum kept while training it. Single precision halves the memory and memory
+ * bandwidth of the weight matrix, which dominates the cost of large machines; activations and
+ * sums are still computed in double precision.
+ * 
+ * @author heikki
+ *
+ */
+public enum Precision {
+  DOUBLE(Double.BYTES), FLOAT(Float.BYTES);
+
+  private final int bytes;
+
+  private Precision(int bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Returns the number of bytes per stored value.
+   */
+  public int bytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the precision stored with the given number of bytes per value.
+   * 
+   * @throws IllegalArgumentException if no precision uses that many bytes
+   */
+  public static Precision ofBytes(int bytes) {
+    for (Precision p : values()) {
+      if (p.bytes == bytes) {
+        return p;
+      }
+    }
+    throw new IllegalArgumentException("No precision of " + bytes + " bytes");
+  }
+}
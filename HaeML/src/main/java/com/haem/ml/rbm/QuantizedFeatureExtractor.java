@@ -0,0 +1,298 @@
+package com.haem.ml.rbm;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.encog.engine.network.activation.ActivationFunction;
+
+import com.haem.ml.utils.FastSigmoid;
+
+/**
+ * An immutable, 8-bit quantized snapshot of a trained {@link RestrictedBoltzmannMachine} for
+ * serving. Each weight is stored as a signed byte, scaled per hidden unit so that the largest
+ * weight of the column maps to 127, which makes the model an eighth of the size of the double
+ * weights. Inputs are quantized the same way, with one scale per vector, and the products are
+ * accumulated in integers; only the final sum of a hidden unit is scaled back and activated.
+ * Like {@link RBMFeatureExtractor}, a single instance can be shared between threads.
+ * <p>
+ * Quantization trades accuracy for bandwidth; {@link #drift(RestrictedBoltzmannMachine,
+ * double[][])} measures how far the probabilities are from those of the original machine.
+ *
+ * @author heikki
+ *
+ */
+public final class QuantizedFeatureExtractor {
+  /**
+   * Number of vectors transformed together by {@link #transform(double[][])}; blocks are
+   * transformed in parallel.
+   */
+  public static final int BLOCK_SIZE = 64;
+
+  /**
+   * The largest visible count whose integer sums cannot overflow.
+   */
+  public static final int MAX_VISIBLE_COUNT = Integer.MAX_VALUE / (127 * 127);
+
+  /**
+   * Number of vectors that share each pass over the weights.
+   */
+  private static final int ROW_BLOCK = 4;
+
+  /**
+   * The difference of the hidden probabilities of a quantized extractor and the machine it was
+   * quantized from, over a set of inputs.
+   */
+  public static final class Drift {
+    private final double maxError;
+    private final double meanError;
+    private final int count;
+
+    Drift(double maxError, double meanError, int count) {
+      this.maxError = maxError;
+      this.meanError = meanError;
+      this.count = count;
+    }
+
+    /**
+     * Returns the largest absolute difference of any hidden probability.
+     */
+    public double getMaxError() {
+      return maxError;
+    }
+
+    /**
+     * Returns the mean absolute difference of the hidden probabilities.
+     */
+    public double getMeanError() {
+      return meanError;
+    }
+
+    /**
+     * Returns the number of input vectors compared.
+     */
+    public int getCount() {
+      return count;
+    }
+
+    @Override
+    public String toString() {
+      return "Drift [maxError=" + maxError + ", meanError=" + meanError + ", count=" + count
+          + "]";
+    }
+  }
+
+  /**
+   * The visible x hidden quantized weights, row-major; weight (i, j) is approximately
+   * weights[i * hiddenCount + j] * columnScales[j].
+   */
+  private final byte[] weights;
+  private final double[] columnScales;
+  private final double[] hiddenBias;
+  private final int visibleCount;
+  private final int hiddenCount;
+  private final ActivationFunction function;
+  private final boolean fastSigmoid;
+
+  /**
+   * Quantizes the current parameters of a machine.
+   */
+  public QuantizedFeatureExtractor(RestrictedBoltzmannMachine machine) {
+    this.visibleCount = machine.visibleCount();
+    this.hiddenCount = machine.hiddenCount();
+    if (visibleCount > MAX_VISIBLE_COUNT) {
+      throw new IllegalArgumentException("At most " + MAX_VISIBLE_COUNT
+          + " visible units can be quantized, the machine has " + visibleCount);
+    }
+    this.weights = new byte[visibleCount * hiddenCount];
+    this.columnScales = new double[hiddenCount];
+    for (int i = 0; i < visibleCount; i++) {
+      for (int j = 0; j < hiddenCount; j++) {
+        columnScales[j] = Math.max(columnScales[j], Math.abs(machine.getWeight(i, j)));
+      }
+    }
+    for (int j = 0; j < hiddenCount; j++) {
+      columnScales[j] /= 127;
+    }
+    for (int i = 0; i < visibleCount; i++) {
+      for (int j = 0; j < hiddenCount; j++) {
+        if (columnScales[j] != 0) {
+          weights[i * hiddenCount + j] =
+              (byte) Math.round(machine.getWeight(i, j) / columnScales[j]);
+        }
+      }
+    }
+    this.hiddenBias = new double[hiddenCount];
+    for (int j = 0; j < hiddenCount; j++) {
+      hiddenBias[j] = machine.getHiddenBias(j);
+    }
+    this.function = machine.getFunction().clone();
+    this.fastSigmoid = !machine.isExactActivation() && FastSigmoid.canReplace(function);
+  }
+
+  public int visibleCount() {
+    return visibleCount;
+  }
+
+  public int hiddenCount() {
+    return hiddenCount;
+  }
+
+  /**
+   * Returns the hidden probabilities of a single vector.
+   */
+  public double[] transform(double[] visible) {
+    double[] ret = new double[hiddenCount];
+    transform(visible, ret, 1);
+    return ret;
+  }
+
+  /**
+   * Computes the hidden probabilities of a flat batch. The vectors are processed ROW_BLOCK at a
+   * time, so that each quantized weight read from memory is used for several vectors.
+   *
+   * @param visible a batchSize x visibleCount() matrix
+   * @param out a batchSize x hiddenCount() matrix for the probabilities
+   * @param batchSize the number of vectors in the batch
+   */
+  public void transform(double[] visible, double[] out, int batchSize) {
+    byte[] input = new byte[ROW_BLOCK * visibleCount];
+    int[] sum = new int[ROW_BLOCK * hiddenCount];
+    double[] inputScales = new double[ROW_BLOCK];
+    for (int b0 = 0; b0 < batchSize; b0 += ROW_BLOCK) {
+      int rows = Math.min(ROW_BLOCK, batchSize - b0);
+      for (int r = 0; r < rows; r++) {
+        inputScales[r] = quantize(visible, (b0 + r) * visibleCount, input, r * visibleCount);
+      }
+      if (rows == ROW_BLOCK) {
+        accumulateBlock(input, sum);
+      } else {
+        for (int r = 0; r < rows; r++) {
+          accumulate(input, r * visibleCount, sum, r * hiddenCount);
+        }
+      }
+      for (int r = 0; r < rows; r++) {
+        int outOffset = (b0 + r) * hiddenCount;
+        for (int j = 0; j < hiddenCount; j++) {
+          out[outOffset + j] =
+              hiddenBias[j] + inputScales[r] * columnScales[j] * sum[r * hiddenCount + j];
+        }
+      }
+    }
+    if (fastSigmoid) {
+      FastSigmoid.apply(out, 0, batchSize * hiddenCount);
+    } else {
+      function.activationFunction(out, 0, batchSize * hiddenCount);
+    }
+  }
+
+  /**
+   * Returns the hidden probabilities of every vector of a batch. The batch is cut into blocks of
+   * BLOCK_SIZE vectors, which are transformed in parallel on the common fork/join pool.
+   */
+  public double[][] transform(double[][] batch) {
+    double[][] ret = new double[batch.length][];
+    int blocks = (batch.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    IntStream.range(0, blocks).parallel().forEach(block -> {
+      int start = block * BLOCK_SIZE;
+      int rows = Math.min(BLOCK_SIZE, batch.length - start);
+      double[] packed = new double[rows * visibleCount];
+      for (int r = 0; r < rows; r++) {
+        System.arraycopy(batch[start + r], 0, packed, r * visibleCount, visibleCount);
+      }
+      double[] result = new double[rows * hiddenCount];
+      transform(packed, result, rows);
+      for (int r = 0; r < rows; r++) {
+        double[] row = new double[hiddenCount];
+        System.arraycopy(result, r * hiddenCount, row, 0, hiddenCount);
+        ret[start + r] = row;
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * Compares the hidden probabilities of this extractor with those of a machine, typically the
+   * one it was quantized from, on a set of inputs.
+   */
+  public Drift drift(RestrictedBoltzmannMachine reference, double[][] inputs) {
+    if (reference.visibleCount() != visibleCount || reference.hiddenCount() != hiddenCount) {
+      throw new IllegalArgumentException("The reference machine has different dimensions");
+    }
+    double[][] quantized = transform(inputs);
+    double max = 0;
+    double sum = 0;
+    double[] expected = new double[hiddenCount];
+    for (int n = 0; n < inputs.length; n++) {
+      reference.hiddenProbabilities(inputs[n], expected);
+      for (int j = 0; j < hiddenCount; j++) {
+        double error = Math.abs(quantized[n][j] - expected[j]);
+        max = Math.max(max, error);
+        sum += error;
+      }
+    }
+    double mean = inputs.length == 0 ? 0 : sum / ((double) inputs.length * hiddenCount);
+    return new Drift(max, mean, inputs.length);
+  }
+
+  /**
+   * Quantizes visibleCount values of a vector to bytes, scaled so that the largest magnitude maps
+   * to 127, and returns the scale.
+   */
+  private double quantize(double[] visible, int offset, byte[] out, int outOffset) {
+    double max = 0;
+    for (int i = 0; i < visibleCount; i++) {
+      max = Math.max(max, Math.abs(visible[offset + i]));
+    }
+    if (max == 0) {
+      Arrays.fill(out, outOffset, outOffset + visibleCount, (byte) 0);
+      return 0;
+    }
+    double scale = max / 127;
+    for (int i = 0; i < visibleCount; i++) {
+      out[outOffset + i] = (byte) Math.round(visible[offset + i] / scale);
+    }
+    return scale;
+  }
+
+  /**
+   * Computes the integer sums of one quantized vector, skipping its zero inputs.
+   */
+  private void accumulate(byte[] input, int inputOffset, int[] sum, int sumOffset) {
+    Arrays.fill(sum, sumOffset, sumOffset + hiddenCount, 0);
+    for (int i = 0; i < visibleCount; i++) {
+      int x = input[inputOffset + i];
+      if (x == 0) {
+        continue;
+      }
+      int rowOffset = i * hiddenCount;
+      for (int j = 0; j < hiddenCount; j++) {
+        sum[sumOffset + j] += x * weights[rowOffset + j];
+      }
+    }
+  }
+
+  /**
+   * Computes the integer sums of ROW_BLOCK quantized vectors in one pass over the weights.
+   */
+  private void accumulateBlock(byte[] input, int[] sum) {
+    Arrays.fill(sum, 0, ROW_BLOCK * hiddenCount, 0);
+    int h = hiddenCount;
+    for (int i = 0; i < visibleCount; i++) {
+      int x0 = input[i];
+      int x1 = input[visibleCount + i];
+      int x2 = input[2 * visibleCount + i];
+      int x3 = input[3 * visibleCount + i];
+      if ((x0 | x1 | x2 | x3) == 0) {
+        continue;
+      }
+      int rowOffset = i * h;
+      for (int j = 0; j < h; j++) {
+        int w = weights[rowOffset + j];
+        sum[j] += x0 * w;
+        sum[h + j] += x1 * w;
+        sum[2 * h + j] += x2 * w;
+        sum[3 * h + j] += x3 * w;
+      }
+    }
+  }
+}
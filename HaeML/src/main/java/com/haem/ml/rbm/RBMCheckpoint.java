@@ -0,0 +1,145 @@
+package com.haem.ml.rbm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A copy of the complete state of an {@link RBMTrainer} and its target machine, and the file
+ * format it is stored in. The copy is taken on the training thread and can then be written by
+ * another thread while training continues.
+ * 
+ * @author heikki
+ *
+ */
+class RBMCheckpoint {
+  static final int MAGIC = 0x43425248;
+  static final int VERSION = 1;
+
+  double[] weights;
+  double[] visibleBias;
+  double[] hiddenBias;
+
+  int iteration;
+  int cdCount;
+  int lastQupdateIteration;
+  double error;
+  double previousError;
+  double overfit;
+  double learningRate;
+  double momentum;
+  double weightSum;
+  double[] previousDeltas;
+  double[] previousDeltasV;
+  double[] previousDeltasH;
+  double[] qOld;
+  double[] particles;
+
+  /**
+   * The seed the trainer was initialized with, and the states of its
+   * {@link com.haem.ml.utils.FastRandom} generators; together they are all the random state of
+   * the trainer.
+   */
+  long seed;
+  long samplerState;
+  long[] workspaceStates;
+  int[] dataOrder;
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeArray(out, weights);
+    writeArray(out, visibleBias);
+    writeArray(out, hiddenBias);
+
+    out.writeInt(iteration);
+    out.writeInt(cdCount);
+    out.writeInt(lastQupdateIteration);
+    out.writeDouble(error);
+    out.writeDouble(previousError);
+    out.writeDouble(overfit);
+    out.writeDouble(learningRate);
+    out.writeDouble(momentum);
+    out.writeDouble(weightSum);
+    writeArray(out, previousDeltas);
+    writeArray(out, previousDeltasV);
+    writeArray(out, previousDeltasH);
+    writeArray(out, qOld);
+    writeArray(out, particles);
+
+    out.writeLong(seed);
+    out.writeLong(samplerState);
+    out.writeInt(workspaceStates.length);
+    for (long state : workspaceStates) {
+      out.writeLong(state);
+    }
+    out.writeInt(dataOrder.length);
+    for (int index : dataOrder) {
+      out.writeInt(index);
+    }
+  }
+
+  static RBMCheckpoint read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an RBM trainer checkpoint");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported checkpoint version " + version);
+    }
+    RBMCheckpoint ret = new RBMCheckpoint();
+    ret.weights = readArray(in);
+    ret.visibleBias = readArray(in);
+    ret.hiddenBias = readArray(in);
+
+    ret.iteration = in.readInt();
+    ret.cdCount = in.readInt();
+    ret.lastQupdateIteration = in.readInt();
+    ret.error = in.readDouble();
+    ret.previousError = in.readDouble();
+    ret.overfit = in.readDouble();
+    ret.learningRate = in.readDouble();
+    ret.momentum = in.readDouble();
+    ret.weightSum = in.readDouble();
+    ret.previousDeltas = readArray(in);
+    ret.previousDeltasV = readArray(in);
+    ret.previousDeltasH = readArray(in);
+    ret.qOld = readArray(in);
+    ret.particles = readArray(in);
+
+    ret.seed = in.readLong();
+    ret.samplerState = in.readLong();
+    ret.workspaceStates = new long[in.readInt()];
+    for (int i = 0; i < ret.workspaceStates.length; i++) {
+      ret.workspaceStates[i] = in.readLong();
+    }
+    ret.dataOrder = new int[in.readInt()];
+    for (int i = 0; i < ret.dataOrder.length; i++) {
+      ret.dataOrder[i] = in.readInt();
+    }
+    return ret;
+  }
+
+  private static void writeArray(DataOutputStream out, double[] array) throws IOException {
+    if (array == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(array.length);
+    for (double d : array) {
+      out.writeDouble(d);
+    }
+  }
+
+  private static double[] readArray(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    double[] ret = new double[length];
+    for (int i = 0; i < length; i++) {
+      ret[i] = in.readDouble();
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,164 @@
+package com.haem.ml.rbm;
+
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import org.encog.engine.network.activation.ActivationFunction;
+
+import com.haem.ml.utils.FastSigmoid;
+
+/**
+ * An immutable snapshot of a trained {@link RestrictedBoltzmannMachine} that maps visible vectors
+ * to hidden probabilities. The snapshot holds its own copy of the parameters and never modifies
+ * them, so a single instance can be shared between threads without locking.
+ * 
+ * @author heikki
+ *
+ */
+public final class RBMFeatureExtractor {
+  /**
+   * Number of vectors transformed together; each block is one matrix-matrix product, and blocks
+   * are transformed in parallel.
+   */
+  public static final int BLOCK_SIZE = 64;
+
+  /**
+   * The visible x hidden weights, in the precision of the machine.
+   */
+  private final WeightMatrix weights;
+  private final double[] hiddenBias;
+  private final int visibleCount;
+  private final int hiddenCount;
+  private final ActivationFunction function;
+  private final boolean fastSigmoid;
+
+  /**
+   * Takes a snapshot of the current parameters of a machine.
+   */
+  public RBMFeatureExtractor(RestrictedBoltzmannMachine machine) {
+    this(machine.weights().copy(), hiddenBias(machine), machine.getFunction().clone(),
+        machine.isExactActivation());
+  }
+
+  /**
+   * Creates an extractor that takes ownership of the given weights, such as the read-only view of
+   * a memory-mapped model file.
+   */
+  RBMFeatureExtractor(WeightMatrix weights, double[] hiddenBias, ActivationFunction function) {
+    this(weights, hiddenBias, function, false);
+  }
+
+  private RBMFeatureExtractor(WeightMatrix weights, double[] hiddenBias,
+      ActivationFunction function, boolean exactActivation) {
+    this.hiddenCount = hiddenBias.length;
+    this.visibleCount = weights.rows;
+    this.weights = weights;
+    this.hiddenBias = hiddenBias;
+    this.function = function;
+    this.fastSigmoid = !exactActivation && FastSigmoid.canReplace(function);
+  }
+
+  private static double[] hiddenBias(RestrictedBoltzmannMachine machine) {
+    double[] ret = new double[machine.hiddenCount()];
+    for (int j = 0; j < ret.length; j++) {
+      ret[j] = machine.getHiddenBias(j);
+    }
+    return ret;
+  }
+
+  public int visibleCount() {
+    return visibleCount;
+  }
+
+  public int hiddenCount() {
+    return hiddenCount;
+  }
+
+  /**
+   * Returns the hidden probabilities of a single vector.
+   */
+  public double[] transform(double[] visible) {
+    double[] ret = new double[hiddenCount];
+    transform(visible, ret, 1);
+    return ret;
+  }
+
+  /**
+   * Computes the hidden probabilities of a flat batch.
+   * 
+   * @param visible a batchSize x visibleCount() matrix
+   * @param out a batchSize x hiddenCount() matrix for the probabilities
+   * @param batchSize the number of vectors in the batch
+   */
+  public void transform(double[] visible, double[] out, int batchSize) {
+    for (int b = 0; b < batchSize; b++) {
+      System.arraycopy(hiddenBias, 0, out, b * hiddenCount, hiddenCount);
+    }
+    weights.multiply(visible, out, batchSize, 0, hiddenCount);
+    if (fastSigmoid) {
+      FastSigmoid.apply(out, 0, batchSize * hiddenCount);
+    } else {
+      function.activationFunction(out, 0, batchSize * hiddenCount);
+    }
+  }
+
+  /**
+   * Returns the hidden probabilities of every vector of a batch. The batch is cut into blocks of
+   * BLOCK_SIZE vectors, which are transformed in parallel on the common fork/join pool.
+   */
+  public double[][] transform(double[][] batch) {
+    double[][] ret = new double[batch.length][];
+    int blocks = (batch.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    IntStream.range(0, blocks).parallel().forEach(block -> transformBlock(batch, ret, block));
+    return ret;
+  }
+
+  /**
+   * Transforms a stream of vectors batchSize vectors at a time, passing each transformed batch to
+   * the consumer in input order. Only one batch of inputs and outputs is held in memory.
+   * 
+   * @param input the visible vectors
+   * @param batchSize the number of vectors transformed at a time
+   * @param output receives the hidden probabilities of each batch
+   */
+  public void transform(Iterator<double[]> input, int batchSize, Consumer<double[][]> output) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+    }
+    double[][] batch = new double[batchSize][];
+    while (input.hasNext()) {
+      int count = 0;
+      while (count < batchSize && input.hasNext()) {
+        batch[count++] = input.next();
+      }
+      if (count < batchSize) {
+        double[][] last = new double[count][];
+        System.arraycopy(batch, 0, last, 0, count);
+        output.accept(transform(last));
+      } else {
+        output.accept(transform(batch));
+      }
+    }
+  }
+
+  /**
+   * Transforms one block of a batch. The packed input is allocated per block, like the result,
+   * so that blocks never share buffers and nothing is left behind on the pool threads.
+   */
+  private void transformBlock(double[][] batch, double[][] out, int block) {
+    int start = block * BLOCK_SIZE;
+    int rows = Math.min(BLOCK_SIZE, batch.length - start);
+    double[] packed = new double[rows * visibleCount];
+    for (int r = 0; r < rows; r++) {
+      System.arraycopy(batch[start + r], 0, packed, r * visibleCount, visibleCount);
+    }
+    double[] result = new double[rows * hiddenCount];
+    transform(packed, result, rows);
+    for (int r = 0; r < rows; r++) {
+      double[] row = new double[hiddenCount];
+      System.arraycopy(result, r * hiddenCount, row, 0, hiddenCount);
+      out[start + r] = row;
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package com.haem.ml.rbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.encog.engine.network.activation.ActivationFunction;
+
+import com.haem.ml.utils.PrimitiveArrays;
+
+/**
+ * Reads and writes restricted Boltzmann machines in a compact binary format. All values are
+ * little-endian. The file starts with a header
+ * 
+ * <pre>
+ * int    magic, "HRBM"
+ * int    format version
+ * int    visible count
+ * int    hidden count
+ * int    precision, bytes per stored value: 8 for doubles, 4 for floats
+ * int    length of the activation function class name
+ * int    number of activation function parameters
+ * byte[] the class name in UTF-8, padded with zeroes to a multiple of 8 bytes
+ * double the activation function parameters, see {@link ActivationFunction#getParams()}
+ * </pre>
+ * 
+ * followed by the visible x hidden weights in row-major order, the visible biases and the hidden
+ * biases, all stored in the precision of the machine.
+ * 
+ * @author heikki
+ *
+ */
+public class RBMModelFormat {
+  public static final int MAGIC = 0x4D425248;
+  public static final int VERSION = 1;
+  public static final int DOUBLE_PRECISION = Double.BYTES;
+  public static final int FLOAT_PRECISION = Float.BYTES;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * The parsed header of a model file.
+   */
+  private static class Header {
+    int visibleCount;
+    int hiddenCount;
+    Precision precision;
+    String function;
+    double[] params;
+    int dataOffset;
+  }
+
+  private RBMModelFormat() {}
+
+  /**
+   * Writes a machine to a file, replacing any existing file.
+   */
+  public static void write(RestrictedBoltzmannMachine machine, Path path) throws IOException {
+    byte[] functionName =
+        machine.getFunction().getClass().getName().getBytes(StandardCharsets.UTF_8);
+    double[] params = machine.getFunction().getParams();
+    int paramOffset = align(7 * Integer.BYTES + functionName.length);
+    ByteBuffer header = ByteBuffer.allocate(paramOffset + params.length * Double.BYTES)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).putInt(machine.visibleCount())
+        .putInt(machine.hiddenCount()).putInt(machine.getPrecision().bytes())
+        .putInt(functionName.length).putInt(params.length).put(functionName);
+    header.position(paramOffset);
+    for (double param : params) {
+      header.putDouble(param);
+    }
+    header.rewind();
+
+    double[] visibleBias = new double[machine.visibleCount()];
+    for (int i = 0; i < visibleBias.length; i++) {
+      visibleBias[i] = machine.getVisibleBias(i);
+    }
+    double[] hiddenBias = new double[machine.hiddenCount()];
+    for (int j = 0; j < hiddenBias.length; j++) {
+      hiddenBias[j] = machine.getHiddenBias(j);
+    }
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(channel, header);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      WeightMatrix weights = machine.weights();
+      for (int start = 0; start < weights.size();) {
+        buffer.clear();
+        start += weights.write(buffer, start);
+        buffer.flip();
+        writeFully(channel, buffer);
+      }
+      if (machine.getPrecision() == Precision.FLOAT) {
+        writeFloats(channel, buffer, PrimitiveArrays.toFloat(visibleBias));
+        writeFloats(channel, buffer, PrimitiveArrays.toFloat(hiddenBias));
+      } else {
+        writeDoubles(channel, buffer, visibleBias);
+        writeDoubles(channel, buffer, hiddenBias);
+      }
+    }
+  }
+
+  /**
+   * Reads a machine from a file into heap arrays, for further training. The machine has the
+   * precision the file was written in.
+   */
+  public static RestrictedBoltzmannMachine read(Path path) throws IOException {
+    ByteBuffer file = map(path);
+    Header header = readHeader(file);
+
+    RestrictedBoltzmannMachine ret = new RestrictedBoltzmannMachine(header.visibleCount,
+        header.hiddenCount, header.precision);
+    ret.setFunction(function(header));
+    file.position(header.dataOffset);
+    ret.weights().read(file);
+    for (int i = 0; i < header.visibleCount; i++) {
+      ret.setVisibleBias(i, readValue(file, header.precision));
+    }
+    for (int j = 0; j < header.hiddenCount; j++) {
+      ret.setHiddenBias(j, readValue(file, header.precision));
+    }
+    return ret;
+  }
+
+  /**
+   * Memory-maps a model file as a feature extractor. The extractor reads the weights straight
+   * from the mapping, which stays open as long as the extractor is reachable, so the weights are
+   * never copied to the heap and pages the operating system has cached are shared between
+   * processes. Only the hidden biases are read into an array.
+   */
+  public static RBMFeatureExtractor mapFeatureExtractor(Path path) throws IOException {
+    ByteBuffer file = map(path);
+    Header header = readHeader(file);
+    file.position(header.dataOffset);
+    WeightMatrix weights =
+        WeightMatrix.wrap(file, header.precision, header.visibleCount, header.hiddenCount);
+    file.position(file.position() + header.visibleCount * header.precision.bytes());
+    double[] hiddenBias = new double[header.hiddenCount];
+    for (int j = 0; j < hiddenBias.length; j++) {
+      hiddenBias[j] = readValue(file, header.precision);
+    }
+    return new RBMFeatureExtractor(weights, hiddenBias, function(header));
+  }
+
+  private static MappedByteBuffer map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer ret = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      ret.order(ByteOrder.LITTLE_ENDIAN);
+      return ret;
+    }
+  }
+
+  private static Header readHeader(ByteBuffer file) throws IOException {
+    if (file.remaining() < 7 * Integer.BYTES || file.getInt() != MAGIC) {
+      throw new IOException("Not an RBM model file");
+    }
+    int version = file.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported RBM model version " + version);
+    }
+    Header ret = new Header();
+    ret.visibleCount = file.getInt();
+    ret.hiddenCount = file.getInt();
+    if (ret.visibleCount < 1 || ret.hiddenCount < 1
+        || (long) ret.visibleCount * ret.hiddenCount > Integer.MAX_VALUE) {
+      throw new IOException("Invalid RBM dimensions " + ret.visibleCount + " x "
+          + ret.hiddenCount);
+    }
+    int precision = file.getInt();
+    if (precision != DOUBLE_PRECISION && precision != FLOAT_PRECISION) {
+      throw new IOException("Unsupported precision of " + precision + " bytes");
+    }
+    ret.precision = Precision.ofBytes(precision);
+    int nameLength = file.getInt();
+    int paramCount = file.getInt();
+    // The name is followed by at most 7 bytes of padding.
+    if (nameLength < 0 || paramCount < 0
+        || file.remaining() < nameLength + 7 + (long) paramCount * Double.BYTES) {
+      throw new IOException("Truncated RBM model file");
+    }
+    byte[] functionName = new byte[nameLength];
+    ret.params = new double[paramCount];
+    file.get(functionName);
+    ret.function = new String(functionName, StandardCharsets.UTF_8);
+    file.position(align(file.position()));
+    for (int k = 0; k < ret.params.length; k++) {
+      ret.params[k] = file.getDouble();
+    }
+    ret.dataOffset = file.position();
+
+    long values = (long) ret.visibleCount * ret.hiddenCount + ret.visibleCount + ret.hiddenCount;
+    if (file.capacity() < ret.dataOffset + values * precision) {
+      throw new IOException("Truncated RBM model file");
+    }
+    return ret;
+  }
+
+  private static double readValue(ByteBuffer file, Precision precision) {
+    return precision == Precision.FLOAT ? file.getFloat() : file.getDouble();
+  }
+
+  /**
+   * Instantiates the activation function of a header and sets its parameters.
+   */
+  private static ActivationFunction function(Header header) throws IOException {
+    ActivationFunction ret;
+    try {
+      ret = (ActivationFunction) Class.forName(header.function).getDeclaredConstructor()
+          .newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IOException("Cannot instantiate activation function " + header.function, e);
+    }
+    if (header.params.length != ret.getParams().length) {
+      throw new IOException("Activation function " + header.function + " has "
+          + ret.getParams().length + " parameters, the file has " + header.params.length);
+    }
+    for (int k = 0; k < header.params.length; k++) {
+      ret.setParam(k, header.params[k]);
+    }
+    return ret;
+  }
+
+  private static int align(int offset) {
+    return (offset + 7) & ~7;
+  }
+
+  private static void writeDoubles(FileChannel channel, ByteBuffer buffer, double[] values)
+      throws IOException {
+    int perBuffer = buffer.capacity() / Double.BYTES;
+    for (int start = 0; start < values.length; start += perBuffer) {
+      int count = Math.min(perBuffer, values.length - start);
+      buffer.clear();
+      buffer.asDoubleBuffer().put(values, start, count);
+      buffer.limit(count * Double.BYTES);
+      writeFully(channel, buffer);
+    }
+  }
+
+  private static void writeFloats(FileChannel channel, ByteBuffer buffer, float[] values)
+      throws IOException {
+    int perBuffer = buffer.capacity() / Float.BYTES;
+    for (int start = 0; start < values.length; start += perBuffer) {
+      int count = Math.min(perBuffer, values.length - start);
+      buffer.clear();
+      buffer.asFloatBuffer().put(values, start, count);
+      buffer.limit(count * Float.BYTES);
+      writeFully(channel, buffer);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
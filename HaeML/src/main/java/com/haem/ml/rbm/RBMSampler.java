@@ -0,0 +1,178 @@
+package com.haem.ml.rbm;
+
+import java.util.stream.IntStream;
+
+import com.haem.ml.utils.FastRandom;
+
+/**
+ * Generates visible samples from a {@link RestrictedBoltzmannMachine} with many independent Gibbs
+ * chains. Chains are advanced in blocks of BLOCK_SIZE, each block as one batch of matrix products,
+ * and the blocks run in parallel on the common fork/join pool. Every chain has its own generator,
+ * derived from the seed, so the samples do not depend on the thread count or scheduling, and a
+ * sampler called twice with the same arguments produces the same samples.
+ * 
+ * @author heikki
+ *
+ */
+public class RBMSampler {
+  /**
+   * Number of chains advanced together as one batch.
+   */
+  public static final int BLOCK_SIZE = 64;
+
+  /**
+   * Receives the samples of {@link RBMSampler#sample(int, int, SampleConsumer)}. The samples of
+   * one chain arrive in order, but different chains are delivered from different threads, so the
+   * consumer must be thread-safe.
+   */
+  public interface SampleConsumer {
+    /**
+     * Accepts sample number sample of a chain, the visibleCount() values of states starting at
+     * offset. The array is reused once the call returns.
+     */
+    void accept(int chain, int sample, double[] states, int offset);
+  }
+
+  private final RestrictedBoltzmannMachine machine;
+  private final long seed;
+  private int burnIn = 100;
+  private int thinning = 1;
+  private boolean meanField;
+
+  /**
+   * Creates a sampler for a machine. The machine must not be modified while sampling.
+   */
+  public RBMSampler(RestrictedBoltzmannMachine machine, long seed) {
+    this.machine = machine;
+    this.seed = seed;
+  }
+
+  public int getBurnIn() {
+    return burnIn;
+  }
+
+  /**
+   * Sets the number of Gibbs steps every chain takes before its first sample.
+   */
+  public void setBurnIn(int burnIn) {
+    if (burnIn < 0) {
+      throw new IllegalArgumentException("Burn-in must not be negative, was " + burnIn);
+    }
+    this.burnIn = burnIn;
+  }
+
+  public int getThinning() {
+    return thinning;
+  }
+
+  /**
+   * Sets the number of Gibbs steps taken before each sample of a chain, after the burn-in.
+   */
+  public void setThinning(int thinning) {
+    if (thinning < 1) {
+      throw new IllegalArgumentException("Thinning must be positive, was " + thinning);
+    }
+    this.thinning = thinning;
+  }
+
+  public boolean isMeanField() {
+    return meanField;
+  }
+
+  /**
+   * Chooses whether samples are the visible probabilities of the last step rather than the
+   * binary visible states. The chains themselves always run on binary states.
+   */
+  public void setMeanField(boolean meanField) {
+    this.meanField = meanField;
+  }
+
+  /**
+   * Runs chains and writes their samples into a preallocated array.
+   * 
+   * @param chains the number of independent chains
+   * @param samplesPerChain the number of samples taken from each chain
+   * @param out a (chains * samplesPerChain) x visibleCount() matrix; sample s of chain c is row
+   *        {@code c * samplesPerChain + s}
+   */
+  public void sample(int chains, int samplesPerChain, double[] out) {
+    int visibleCount = machine.visibleCount();
+    sample(chains, samplesPerChain, (chain, sample, states, offset) -> System.arraycopy(states,
+        offset, out, (chain * samplesPerChain + sample) * visibleCount, visibleCount));
+  }
+
+  /**
+   * Runs chains and passes their samples to a consumer as they are produced, so that any number
+   * of samples can be generated in constant memory.
+   * 
+   * @param chains the number of independent chains
+   * @param samplesPerChain the number of samples taken from each chain
+   * @param consumer receives the samples
+   */
+  public void sample(int chains, int samplesPerChain, SampleConsumer consumer) {
+    FastRandom master = new FastRandom(seed);
+    FastRandom[] generators = new FastRandom[chains];
+    for (int c = 0; c < chains; c++) {
+      generators[c] = master.split();
+    }
+    int blocks = (chains + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    IntStream.range(0, blocks).parallel()
+        .forEach(block -> runBlock(block, chains, samplesPerChain, generators, consumer));
+  }
+
+  private void runBlock(int block, int chains, int samplesPerChain, FastRandom[] generators,
+      SampleConsumer consumer) {
+    int first = block * BLOCK_SIZE;
+    int rows = Math.min(BLOCK_SIZE, chains - first);
+    int visibleCount = machine.visibleCount();
+    int hiddenCount = machine.hiddenCount();
+    double[] visible = new double[rows * visibleCount];
+    double[] visibleProbabilities = new double[rows * visibleCount];
+    double[] hidden = new double[rows * hiddenCount];
+    double[] hiddenProbabilities = new double[rows * hiddenCount];
+    int[] active = new int[hiddenCount];
+
+    // Start from the visible distribution with every hidden unit off.
+    machine.visibleProbabilitiesOfStates(hidden, visibleProbabilities, rows, active);
+    sample(visibleProbabilities, visible, visibleCount, generators, first, rows);
+    for (int step = 0; step < burnIn; step++) {
+      gibbsStep(visible, visibleProbabilities, hidden, hiddenProbabilities, active, generators,
+          first, rows);
+    }
+    double[] states = meanField ? visibleProbabilities : visible;
+    for (int sample = 0; sample < samplesPerChain; sample++) {
+      for (int step = 0; step < thinning; step++) {
+        gibbsStep(visible, visibleProbabilities, hidden, hiddenProbabilities, active, generators,
+            first, rows);
+      }
+      for (int r = 0; r < rows; r++) {
+        consumer.accept(first + r, sample, states, r * visibleCount);
+      }
+    }
+  }
+
+  /**
+   * Takes one Gibbs step, visible to hidden to visible, for a block of chains.
+   */
+  private void gibbsStep(double[] visible, double[] visibleProbabilities, double[] hidden,
+      double[] hiddenProbabilities, int[] active, FastRandom[] generators, int first, int rows) {
+    machine.hiddenProbabilities(visible, hiddenProbabilities, rows);
+    sample(hiddenProbabilities, hidden, machine.hiddenCount(), generators, first, rows);
+    machine.visibleProbabilitiesOfStates(hidden, visibleProbabilities, rows, active);
+    sample(visibleProbabilities, visible, machine.visibleCount(), generators, first, rows);
+  }
+
+  /**
+   * Samples each row of a block of chains with the generator of its chain.
+   */
+  private static void sample(double[] probabilities, double[] states, int width,
+      FastRandom[] generators, int first, int rows) {
+    for (int r = 0; r < rows; r++) {
+      FastRandom random = generators[first + r];
+      int offset = r * width;
+      for (int i = offset; i < offset + width; i++) {
+        states[i] = random.nextDouble() < probabilities[i] ? 1 : 0;
+      }
+    }
+  }
+}
@@ -1,26 +1,232 @@
 package com.haem.ml.rbm;
 
-import java.math.BigDecimal;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.haem.ml.utils.CompensatedSum;
+import com.haem.ml.utils.FastRandom;
+import com.haem.ml.utils.FastSigmoid;
+import com.haem.ml.utils.MatrixKernels;
 import com.haem.ml.utils.Trainer;
 
-public class RBMTrainer implements Trainer {
+public class RBMTrainer implements Trainer, AutoCloseable {
+  /**
+   * The smallest slice of a minibatch that is given to its own fork/join task. Smaller slices
+   * would spend more time reducing their gradient than computing it.
+   */
+  private static final int MIN_TASK_SIZE = 4;
+
+  /**
+   * Number of row stripes of the weight matrix per thread in asynchronous mode. With several
+   * stripes per worker, workers that start their updates at different stripes rarely wait for
+   * each other.
+   */
+  private static final int STRIPES_PER_THREAD = 8;
+
+  /**
+   * Number of minibatches per thread that a streamed epoch reads into memory at a time in
+   * asynchronous mode, for the workers to claim.
+   */
+  private static final int WINDOW_BATCHES_PER_THREAD = 16;
+
+  /**
+   * Number of minibatches of a streamed source held back to shuffle the order of the vectors. A
+   * source read in order, such as a file sorted by class, would otherwise give minibatches of a
+   * single class.
+   */
+  private static final int SHUFFLE_BATCHES = 8;
+
+  /**
+   * Computes the gradient of a slice of a minibatch. Leaf tasks accumulate into their own
+   * gradient, and on the way back up the tree every task adds its right half into its left half,
+   * so the reduction runs in parallel and the whole minibatch ends up in the first leaf's gradient.
+   * The merged halves are cleared, so no worker is left holding a stale partial gradient.
+   * Each leaf also samples with its own generator, so the result does not depend on which pool
+   * thread happens to run it. In persistent mode the fantasy particles are split the same way.
+   */
+  private class GradientTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final List<double[]> batch;
+    private final int firstLeaf;
+    private final int leafCount;
+    private final double scale;
+    private final int firstParticle;
+    private final int lastParticle;
+
+    GradientTask(List<double[]> batch, int firstLeaf, int leafCount, double scale,
+        int firstParticle, int lastParticle) {
+      this.batch = batch;
+      this.firstLeaf = firstLeaf;
+      this.leafCount = leafCount;
+      this.scale = scale;
+      this.firstParticle = firstParticle;
+      this.lastParticle = lastParticle;
+    }
+
+    @Override
+    protected void compute() {
+      if (leafCount == 1) {
+        Workspace workspace = workspaces[firstLeaf];
+        workspace.gradient.clear();
+        calculateWeightAdjust(batch, workspace, scale, firstParticle, lastParticle,
+            1.0 / persistentChains);
+        return;
+      }
+      int leftLeaves = leafCount / 2;
+      int split = batch.size() * leftLeaves / leafCount;
+      int particleSplit = firstParticle + (lastParticle - firstParticle) * leftLeaves / leafCount;
+      GradientTask left = new GradientTask(batch.subList(0, split), firstLeaf, leftLeaves, scale,
+          firstParticle, particleSplit);
+      GradientTask right = new GradientTask(batch.subList(split, batch.size()),
+          firstLeaf + leftLeaves, leafCount - leftLeaves, scale, particleSplit, lastParticle);
+      invokeAll(left, right);
+      Gradient partial = workspaces[firstLeaf + leftLeaves].gradient;
+      workspaces[firstLeaf].gradient.add(partial);
+      partial.clear();
+    }
+  }
+
+  /**
+   * Runs asynchronous workers, see {@link #setAsynchronous(boolean)}. Each leaf is one worker
+   * that claims whole minibatches from a shared cursor until the data runs out, and applies the
+   * gradient of each as soon as it is computed. A gradient that turns out too stale to apply is
+   * computed again from the current weights, so no minibatch is skipped.
+   */
+  private class AsynchronousTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final List<double[]> samples;
+    private final int batchSize;
+    private final AtomicInteger next;
+    private final int firstWorker;
+    private final int workerCount;
+
+    AsynchronousTask(List<double[]> samples, int batchSize, AtomicInteger next, int firstWorker,
+        int workerCount) {
+      this.samples = samples;
+      this.batchSize = batchSize;
+      this.next = next;
+      this.firstWorker = firstWorker;
+      this.workerCount = workerCount;
+    }
+
+    @Override
+    protected void compute() {
+      if (workerCount == 1) {
+        Workspace workspace = workspaces[firstWorker];
+        int firstStripe = firstWorker * stripeLocks.length / threadCount;
+        int firstParticle = firstWorker * persistentChains / threadCount;
+        int lastParticle = (firstWorker + 1) * persistentChains / threadCount;
+        workspace.gradient.clear();
+        int start;
+        while ((start = next.getAndAdd(batchSize)) < samples.size()) {
+          List<double[]> batch =
+              samples.subList(start, Math.min(samples.size(), start + batchSize));
+          long seen;
+          do {
+            seen = updateCount.get();
+            calculateWeightAdjust(batch, workspace, 1.0 / batch.size(), firstParticle,
+                lastParticle, 1.0 / Math.max(1, lastParticle - firstParticle));
+          } while (!applyAsynchronously(workspace.gradient, firstStripe, seen));
+        }
+        return;
+      }
+      int leftWorkers = workerCount / 2;
+      invokeAll(new AsynchronousTask(samples, batchSize, next, firstWorker, leftWorkers),
+          new AsynchronousTask(samples, batchSize, next, firstWorker + leftWorkers,
+              workerCount - leftWorkers));
+    }
+  }
+
+  /**
+   * A per-vector monitoring metric, evaluated with the buffers of the given workspace.
+   */
+  private interface VectorMetric {
+    double evaluate(double[] input, Workspace workspace);
+  }
+
+  /**
+   * Sums a metric over a range of vectors, split across workers the same way as
+   * {@link GradientTask}.
+   */
+  private class MetricTask extends RecursiveTask<Double> {
+    private static final long serialVersionUID = 1L;
+    private final List<double[]> data;
+    private final VectorMetric metric;
+    private final int firstWorker;
+    private final int workerCount;
+
+    MetricTask(List<double[]> data, VectorMetric metric, int firstWorker, int workerCount) {
+      this.data = data;
+      this.metric = metric;
+      this.firstWorker = firstWorker;
+      this.workerCount = workerCount;
+    }
+
+    @Override
+    protected Double compute() {
+      if (workerCount == 1) {
+        Workspace workspace = workspace(firstWorker);
+        double sum = 0;
+        for (double[] input : data) {
+          sum += metric.evaluate(input, workspace);
+        }
+        return sum;
+      }
+      int leftWorkers = workerCount / 2;
+      int split = data.size() * leftWorkers / workerCount;
+      MetricTask left = new MetricTask(data.subList(0, split), metric, firstWorker, leftWorkers);
+      MetricTask right = new MetricTask(data.subList(split, data.size()), metric,
+          firstWorker + leftWorkers, workerCount - leftWorkers);
+      right.fork();
+      return left.compute() + right.join();
+    }
+  }
+
   private double error;
   private int iteration = 0;
   private double learningRate;
 
   private double minLearningRate = 1e-5;
   private double momentum = 0.5;
-  private double[][] previousDeltas;
+  /**
+   * Momentum of the weights, in the precision of the target.
+   */
+  private WeightMatrix previousDeltas;
   private double previousError = Double.POSITIVE_INFINITY;
   private double pTarget = 0.1;
   private double qDecay = 0.9;
   private double[] qOld;
-  private Random random;
+  /**
+   * The seed of the last {@link #initialize(long)}, and the generator of the trainer, which picks
+   * the particles, seeds the workspaces and shuffles the data; null until initialized.
+   */
+  private long seed;
+  private FastRandom sampler;
   private double sparsityCost;
 
   private RestrictedBoltzmannMachine target;
@@ -30,11 +236,51 @@ public class RBMTrainer implements Trainer {
 
   private List<List<double[]>> trainingData;
 
+  /**
+   * The streamed training data, or null when the data are held in trainingData. The vectors at
+   * testIndices, in ascending order, are held out as the test set.
+   */
+  private TrainingSource source;
+  private long[] testIndices;
+  private int holdoutSize = 100;
+  private int batchSize = 10;
+
   private double weightCost = 1e-4;
   private double overfit;
   private double[] previousDeltasH;
   private double[] previousDeltasV;
   private int cdCount = 1;
+  private int threadCount = 1;
+  private ForkJoinPool pool;
+  private Workspace[] workspaces;
+  private double[] sparsityAdjust;
+  private double weightSum = Double.NaN;
+  private int monitorInterval = 1;
+  private int overfitInterval = 3;
+  private int monitorSampleSize = Integer.MAX_VALUE;
+  private final List<double[]> minibatch = new ArrayList<>();
+  private List<List<double[]>> initialDataOrder;
+
+  private Path checkpointPath;
+  private int checkpointInterval;
+  private ExecutorService checkpointWriter;
+  private final AtomicReference<RBMCheckpoint> pendingCheckpoint = new AtomicReference<>();
+  private volatile IOException checkpointError;
+
+  private boolean asynchronous;
+  private int persistentChains;
+  /**
+   * The visible states of the fantasy particles, persistentChains x visible, in persistent mode.
+   */
+  private double[] particles;
+  private final Object biasLock = new Object();
+  private Object[] stripeLocks;
+  private double[] stripeSums;
+  /**
+   * The number of gradients applied asynchronously, which the workers read before computing a
+   * gradient to tell how stale it is when it is applied.
+   */
+  private final AtomicLong updateCount = new AtomicLong();
 
   public RBMTrainer(double learningRate, RestrictedBoltzmannMachine target,
       List<double[]>... dataSets) {
@@ -51,16 +297,42 @@ public class RBMTrainer implements Trainer {
     this.error = target.hiddenCount() * target.visibleCount();
   }
 
-  private synchronized void applyWeightAdjust(double[][] weightAdjust, double[] visibleBiasAdjust,
-      double[] hiddenBiasAdjust) {
-    if (previousDeltas == null) {
-      previousDeltas = new double[weightAdjust.length][weightAdjust[0].length];
+  /**
+   * Creates a trainer that streams its training data from a source, so the data need not fit in
+   * memory. Each epoch is one pass over the source in its own order, in minibatches of
+   * {@link #getBatchSize()} vectors. {@link #initialize(long)} picks the held out test and
+   * validation vectors by their indices in the source, so unlike the list constructor, which
+   * still moves the test vectors out of the given lists, it never modifies the data.
+   */
+  public RBMTrainer(double learningRate, RestrictedBoltzmannMachine target,
+      TrainingSource source) {
+    this(learningRate, target);
+    setTrainingSource(source);
+  }
+
+  private void applyWeightAdjust(Gradient gradient) {
+    double penalty = applyBiasAdjust(gradient);
+    weightSum = applyWeightAdjust(gradient, penalty, 0, target.visibleCount());
+  }
+
+  /**
+   * Applies the bias adjustments and momentum, clears the bias adjustments, and returns the weight
+   * penalty for the weight update that follows.
+   */
+  private double applyBiasAdjust(Gradient gradient) {
+    double[] visibleBiasAdjust = gradient.visibleBias;
+    double[] hiddenBiasAdjust = gradient.hiddenBias;
+    if (previousDeltasV == null) {
+      previousDeltas = WeightMatrix.create(target.getPrecision(), target.visibleCount(),
+          target.hiddenCount());
       previousDeltasV = new double[visibleBiasAdjust.length];
       previousDeltasH = new double[hiddenBiasAdjust.length];
     }
     double penalty = calculateWeightPenalty();
     updateQ();
-    double[] sparsityAdjust = new double[target.hiddenCount()];
+    if (sparsityAdjust == null) {
+      sparsityAdjust = new double[target.hiddenCount()];
+    }
     for (int j = 0; j < target.hiddenCount(); j++) {
       sparsityAdjust[j] = sparsityCost * (qOld[j] - pTarget);
       double deltaB =
@@ -70,41 +342,51 @@ public class RBMTrainer implements Trainer {
       target.setHiddenBias(j, target.getHiddenBias(j) + deltaB);
     }
 
-    for (int i = 0; i < weightAdjust.length; i++) {
-
+    for (int i = 0; i < target.visibleCount(); i++) {
       double deltaB = learningRate * visibleBiasAdjust[i] + momentum * previousDeltasV[i];
       previousDeltasV[i] = 0;
       visibleBiasAdjust[i] = 0;
       target.setVisibleBias(i, target.getVisibleBias(i) + deltaB);
+    }
+    return penalty;
+  }
 
-      for (int j = 0; j < weightAdjust[i].length; j++) {
-        double delta = learningRate * (weightAdjust[i][j] - penalty)
-            + momentum * previousDeltas[i][j] - sparsityAdjust[j];
+  /**
+   * Applies the weight adjustments and momentum of the visible rows [firstRow, lastRow) to the
+   * target weights and clears those adjustments. The sum of the updated rows, for the next
+   * penalty, is accumulated, compensated, as the weights are updated, and returned. The stored
+   * weight is summed, so that the sum of a single precision target matches its rounded weights.
+   */
+  private double applyWeightAdjust(Gradient gradient, double penalty, int firstRow,
+      int lastRow) {
+    WeightMatrix weightAdjust = gradient.weights;
+    CompensatedSum sum = new CompensatedSum();
+    int hiddenCount = target.hiddenCount();
+    for (int i = firstRow; i < lastRow; i++) {
+      for (int j = 0; j < hiddenCount; j++) {
+        int index = i * hiddenCount + j;
+        double delta = learningRate * (weightAdjust.get(index) - penalty)
+            + momentum * previousDeltas.get(index) - sparsityAdjust[j];
         target.setWeight(target.getWeight(i, j) + delta, i, j);
-        previousDeltas[i][j] = delta;
-        weightAdjust[i][j] = 0;
+        previousDeltas.set(index, delta);
+        weightAdjust.set(index, 0);
+        sum.add(target.getWeight(i, j));
       }
     }
+    return sum.value();
   }
 
 
+  /**
+   * Returns the weight penalty, the weight cost times the sum of all weights. The sum is computed
+   * from scratch at the start of every iteration, so that changes made to the weights outside the
+   * trainer are picked up, and kept up to date by {@link #applyWeightAdjust(Gradient)} within it.
+   */
   private double calculateWeightPenalty() {
-    BigDecimal l2 = new BigDecimal(0);
-    double minWeight = Double.POSITIVE_INFINITY;
-    double maxWeight = Double.NEGATIVE_INFINITY;
-    for (int i = 0; i < target.visibleCount(); i++) {
-      for (int j = 0; j < target.hiddenCount(); j++) {
-        double w = target.getWeight(i, j);
-        l2 = l2.add(new BigDecimal(w * weightCost));
-        if (w > maxWeight) {
-          maxWeight = w;
-        }
-        if (w < minWeight) {
-          w = minWeight;
-        }
-      }
+    if (Double.isNaN(weightSum)) {
+      weightSum = target.weightSum();
     }
-    double ret = l2.doubleValue();
+    double ret = weightSum * weightCost;
     if (Double.isInfinite(ret)) {
       ret = Math.signum(ret);
     }
@@ -129,28 +411,108 @@ public class RBMTrainer implements Trainer {
   }
 
   public void initialize(long randomSeed) {
-    this.random = new Random(randomSeed);
-    target.reset(this.random);
+    Random random = new Random(randomSeed);
+    this.seed = randomSeed;
+    this.sampler = new FastRandom(random.nextLong());
+    this.workspaces = null;
+    this.particles = null;
+    target.reset(random);
+    this.weightSum = Double.NaN;
 
+    if (source != null) {
+      initializeStream(random);
+      return;
+    }
     double[] probability = new double[target.visibleCount()];
-    int count = 0;
+    long count = 0;
     for (List<double[]> list : trainingData) {
+      for (double[] input : list) {
+        for (int i = 0; i < input.length; i++) {
+          probability[i] += input[i];
+        }
+      }
       count += list.size();
     }
-    for (List<double[]> list : trainingData) {
-      for (double[] input : list) {
+    setVisibleBiases(probability, count);
+    splitLists(random);
+  }
+
+  /**
+   * Splits a streamed source and sets the visible biases in a single pass. Up to holdoutSize
+   * vectors at random indices are held out as the test set, and as many at other indices are
+   * copied as the validation set, which is still trained on. Only these two sets are kept in
+   * memory.
+   */
+  private void initializeStream(Random random) {
+    long size = source.size();
+    if (size < 2) {
+      throw new IllegalStateException("The training source needs at least two vectors");
+    }
+    int holdout = (int) Math.min(holdoutSize, Math.max(1, size / 5));
+    long[] picked = pickIndices(random, size, 2 * holdout);
+    testIndices = Arrays.copyOf(picked, holdout);
+    long[] validationIndices = Arrays.copyOfRange(picked, holdout, picked.length);
+    Arrays.sort(testIndices);
+    Arrays.sort(validationIndices);
+
+    testData = new ArrayList<>();
+    validationData = new ArrayList<>();
+    double[] probability = new double[target.visibleCount()];
+    int nextTest = 0;
+    int nextValidation = 0;
+    try (TrainingSource.Pass vectors = source.iterator()) {
+      for (long index = 0; vectors.hasNext(); index++) {
+        double[] input = vectors.next();
         for (int i = 0; i < input.length; i++) {
-          probability[i] += input[i] / count;
+          probability[i] += input[i];
+        }
+        if (nextTest < testIndices.length && testIndices[nextTest] == index) {
+          testData.add(input);
+          nextTest++;
+        } else if (nextValidation < validationIndices.length
+            && validationIndices[nextValidation] == index) {
+          validationData.add(input);
+          nextValidation++;
         }
       }
     }
+    setVisibleBiases(probability, size);
+  }
 
+  /**
+   * Draws count distinct indices below size, in the order they were drawn.
+   */
+  private static long[] pickIndices(Random random, long size, int count) {
+    Set<Long> picked = new LinkedHashSet<>();
+    while (picked.size() < count) {
+      picked.add(Math.floorMod(random.nextLong(), size));
+    }
+    long[] ret = new long[count];
+    int n = 0;
+    for (long index : picked) {
+      ret[n++] = index;
+    }
+    return ret;
+  }
+
+  /**
+   * Sets the visible biases to the log odds of the mean activities, given the sum of count
+   * vectors.
+   */
+  private void setVisibleBiases(double[] sum, long count) {
     for (int i = 0; i < target.visibleCount(); i++) {
-      double bias = Math.log(probability[i] / (1 - probability[i]));
+      double probability = sum[i] / count;
+      double bias = Math.log(probability / (1 - probability));
       bias = Math.max(-3, bias);
       bias = Math.min(3, bias);
       target.setVisibleBias(i, bias);
     }
+  }
+
+  /**
+   * Moves random vectors of the lists to the test set, and picks the validation set.
+   */
+  private void splitLists(Random random) {
     int testSize = (int) (0.2 * trainingData.size() + 0.5);
     if (testData.isEmpty()) {
       for (int i = 0; i < testSize; i += trainingData.size()) {
@@ -167,22 +529,49 @@ public class RBMTrainer implements Trainer {
         testData.add(list.get(i));
       }
     }
+    initialDataOrder = new ArrayList<>(trainingData);
   }
 
   public void iterate() {
-    if (random == null) {
+    if (sampler == null) {
       throw new Error("You must initialize the trainer or set the random generator.");
     }
+    // Each asynchronous worker runs the negative phase on its own slice of the particles.
+    if (asynchronous && threadCount > 1 && persistentChains > 0
+        && persistentChains < threadCount) {
+      throw new IllegalStateException("Asynchronous persistent training needs a chain per thread, "
+          + "has " + persistentChains + " chains for " + threadCount + " threads");
+    }
 
-    Collections.shuffle(trainingData, this.random);
-    double[][] weightAdjust = new double[target.visibleCount()][target.hiddenCount()];
-    double[] visibleBiasAdjust = new double[target.visibleCount()];
-    double[] hiddenBiasAdjust = new double[target.hiddenCount()];
+    weightSum = Double.NaN;
+    if (source != null) {
+      iterateStream();
+    } else {
+      iterateLists();
+    }
+    if (getIteration() % monitorInterval == 0) {
+      updateError();
+    }
+
+    setIteration(getIteration() + 1);
 
-    if (trainingData.size() == 1) {
+    if (getIteration() > 2) {
+      this.cdCount = Math.min(10, getIteration() - 2);
+    }
+    if (checkpointPath != null && getIteration() % checkpointInterval == 0) {
+      scheduleCheckpoint(checkpointPath);
+    }
+  }
+
+  private void iterateLists() {
+    shuffle(trainingData);
+
+    if (asynchronous && threadCount > 1) {
+      iterateAsynchronously();
+    } else if (trainingData.size() == 1) {
       int interval = 10;
       for (int start = 0; start < trainingData.size(); start += interval) {
-        iterateInternalLump(interval, start, weightAdjust, visibleBiasAdjust, hiddenBiasAdjust);
+        iterateInternalLump(interval, start);
       }
     } else {
       int size = 0;
@@ -192,45 +581,299 @@ public class RBMTrainer implements Trainer {
         }
       }
       for (int i = 0; i < size; i++) {
-        iterateInternalMinibatch(i, weightAdjust, visibleBiasAdjust, hiddenBiasAdjust);
+        iterateInternalMinibatch(i);
       }
     }
-    updateError();
+  }
 
-    setIteration(getIteration() + 1);
+  /**
+   * Shuffles a list with the generator of the trainer, so that the order is part of the state a
+   * checkpoint restores.
+   */
+  private <T> void shuffle(List<T> list) {
+    for (int i = list.size() - 1; i > 0; i--) {
+      Collections.swap(list, i, sampler.nextInt(i + 1));
+    }
+  }
 
-    if (getIteration() > 2) {
-      this.cdCount = Math.min(10, getIteration() - 2);
+  /**
+   * Trains one epoch on a pass over the streamed source, skipping the test vectors. The vectors
+   * pass through a shuffle buffer of SHUFFLE_BATCHES minibatches: once it is full, each vector
+   * read replaces a randomly chosen one, which goes on to training, and at the end of the pass
+   * the rest leave in random order. In asynchronous mode a window of minibatches is collected at
+   * a time, shuffled again and shared by the workers, otherwise one minibatch at a time.
+   */
+  private void iterateStream() {
+    boolean async = asynchronous && threadCount > 1;
+    int windowSize = async ? batchSize * threadCount * WINDOW_BATCHES_PER_THREAD : batchSize;
+    List<double[]> window = new ArrayList<>(windowSize);
+    double[][] shuffle = new double[SHUFFLE_BATCHES * batchSize][];
+    int held = 0;
+    int nextTest = 0;
+    try (TrainingSource.Pass vectors = source.iterator()) {
+      for (long index = 0; vectors.hasNext(); index++) {
+        double[] input = vectors.next();
+        if (nextTest < testIndices.length && testIndices[nextTest] == index) {
+          nextTest++;
+          continue;
+        }
+        if (held < shuffle.length) {
+          shuffle[held++] = input;
+          continue;
+        }
+        int pick = sampler.nextInt(held);
+        addToWindow(window, shuffle[pick], windowSize, async);
+        shuffle[pick] = input;
+      }
+    }
+    for (; held > 0; held--) {
+      int pick = sampler.nextInt(held);
+      addToWindow(window, shuffle[pick], windowSize, async);
+      shuffle[pick] = shuffle[held - 1];
+    }
+    if (!window.isEmpty()) {
+      trainWindow(window, async);
     }
   }
 
-  private void updateError() {
-    double currentError = 0;
-    for (double[] input : testData) {
-      double[] visibleProbabilities = input;
-      double[] hiddenProbabilities = null;
-      double[] output = target.hiddenProbabilities(input);
-      for (int i = 0; i < cdCount; i++) {
-        hiddenProbabilities = target.hiddenProbabilities(visibleProbabilities);
-        boolean[] hiddenState =
-            RestrictedBoltzmannMachine.probabilitiesToBoolean(hiddenProbabilities);
-        visibleProbabilities = target.visibleProbabilities(hiddenState);
+  private void addToWindow(List<double[]> window, double[] input, int windowSize,
+      boolean async) {
+    window.add(input);
+    if (window.size() == windowSize) {
+      trainWindow(window, async);
+      window.clear();
+    }
+  }
+
+  private void trainWindow(List<double[]> window, boolean async) {
+    if (async) {
+      shuffle(window);
+      trainAsynchronously(window, batchSize);
+    } else {
+      processMinibatch(window);
+    }
+  }
+
+  /**
+   * Enables periodic checkpoints of the complete training state. The state is copied on the
+   * training thread and written to the path by a background thread, so training does not wait for
+   * the disk. If the writer falls behind, only the newest pending checkpoint is written. Each
+   * checkpoint is written to a temporary file and then moved over the previous one.
+   * 
+   * @param path the checkpoint file, or null to disable checkpointing
+   * @param interval the number of iterations between checkpoints
+   */
+  public void setCheckpointing(Path path, int interval) {
+    if (path != null && interval < 1) {
+      throw new IllegalArgumentException("Checkpoint interval must be positive, was " + interval);
+    }
+    this.checkpointPath = path;
+    this.checkpointInterval = interval;
+  }
+
+  /**
+   * Writes a checkpoint of the complete training state, waiting for the write to finish.
+   */
+  public void checkpoint(Path path) throws IOException {
+    writeCheckpoint(capture(), path);
+  }
+
+  /**
+   * Waits until all scheduled background checkpoints have been written.
+   * 
+   * @throws IOException if a background write failed since the last call
+   */
+  public void awaitCheckpoint() throws IOException {
+    if (checkpointWriter != null) {
+      try {
+        checkpointWriter.submit(() -> {
+        }).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for checkpoint", e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
       }
+    }
+    IOException failure = checkpointError;
+    if (failure != null) {
+      checkpointError = null;
+      throw failure;
+    }
+  }
 
-      double totalError = 0;
-      for (int i = 0; i < target.visibleCount(); i++) {
-        for (int j = 0; j < target.hiddenCount(); j++) {
-          double dataExpected = input[i] * output[j];
-          double reconExpected = visibleProbabilities[i] * hiddenProbabilities[j];
-          double pointError = dataExpected - reconExpected;
-          totalError += pointError * pointError;
-        }
+  /**
+   * Restores the training state from a checkpoint, so that further iterations continue exactly
+   * as they would have without the interruption. The trainer must be set up the same way as the
+   * one the checkpoint was taken from: the same target dimensions and training data,
+   * {@link #initialize(long)} called with the same seed, and the same thread count.
+   */
+  public void restore(Path path) throws IOException {
+    RBMCheckpoint checkpoint;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      checkpoint = RBMCheckpoint.read(in);
+    }
+    if (checkpoint.weights.length != target.visibleCount() * target.hiddenCount()
+        || checkpoint.visibleBias.length != target.visibleCount()) {
+      throw new IOException("Checkpoint does not match the dimensions of the target");
+    }
+    if (checkpoint.workspaceStates.length != 0
+        && checkpoint.workspaceStates.length != threadCount) {
+      throw new IOException("Checkpoint was taken with " + checkpoint.workspaceStates.length
+          + " threads, trainer has " + threadCount);
+    }
+    if (sampler == null || checkpoint.seed != seed) {
+      throw new IOException("Checkpoint was taken after initializing with seed " + checkpoint.seed
+          + ", initialize the trainer with the same seed first");
+    }
+    if (checkpoint.dataOrder.length != trainingData.size()) {
+      throw new IOException("Checkpoint does not match the training data");
+    }
+    if (checkpoint.particles != null
+        && checkpoint.particles.length != persistentChains * target.visibleCount()) {
+      throw new IOException("Checkpoint does not match the persistent chain count");
+    }
+
+    target.weights().load(checkpoint.weights);
+    for (int i = 0; i < checkpoint.visibleBias.length; i++) {
+      target.setVisibleBias(i, checkpoint.visibleBias[i]);
+    }
+    for (int j = 0; j < checkpoint.hiddenBias.length; j++) {
+      target.setHiddenBias(j, checkpoint.hiddenBias[j]);
+    }
+    this.iteration = checkpoint.iteration;
+    this.cdCount = checkpoint.cdCount;
+    this.lastQupdateIteration = checkpoint.lastQupdateIteration;
+    this.error = checkpoint.error;
+    this.previousError = checkpoint.previousError;
+    this.overfit = checkpoint.overfit;
+    this.learningRate = checkpoint.learningRate;
+    this.momentum = checkpoint.momentum;
+    this.weightSum = checkpoint.weightSum;
+    if (checkpoint.previousDeltas == null) {
+      this.previousDeltas = null;
+    } else {
+      this.previousDeltas = WeightMatrix.create(target.getPrecision(), target.visibleCount(),
+          target.hiddenCount());
+      previousDeltas.load(checkpoint.previousDeltas);
+    }
+    this.previousDeltasV = checkpoint.previousDeltasV;
+    this.previousDeltasH = checkpoint.previousDeltasH;
+    this.qOld = checkpoint.qOld;
+    this.particles = checkpoint.particles;
+
+    this.sampler = new FastRandom(checkpoint.samplerState);
+    if (checkpoint.workspaceStates.length == 0) {
+      this.workspaces = null;
+    } else {
+      this.workspaces = new Workspace[threadCount];
+      for (int i = 0; i < threadCount; i++) {
+        workspaces[i] = new Workspace(target.visibleCount(), target.hiddenCount(),
+            target.getPrecision(), new FastRandom(checkpoint.workspaceStates[i]));
       }
-      currentError += totalError / testData.size();
     }
-    this.error = currentError;
+    List<List<double[]>> baseOrder =
+        initialDataOrder != null ? initialDataOrder : new ArrayList<>(trainingData);
+    for (int i = 0; i < checkpoint.dataOrder.length; i++) {
+      trainingData.set(i, baseOrder.get(checkpoint.dataOrder[i]));
+    }
+  }
+
+  /**
+   * Copies the complete training state.
+   */
+  private RBMCheckpoint capture() {
+    RBMCheckpoint ret = new RBMCheckpoint();
+    ret.weights = target.weights().toDoubles();
+    ret.visibleBias = new double[target.visibleCount()];
+    for (int i = 0; i < ret.visibleBias.length; i++) {
+      ret.visibleBias[i] = target.getVisibleBias(i);
+    }
+    ret.hiddenBias = new double[target.hiddenCount()];
+    for (int j = 0; j < ret.hiddenBias.length; j++) {
+      ret.hiddenBias[j] = target.getHiddenBias(j);
+    }
+    ret.iteration = iteration;
+    ret.cdCount = cdCount;
+    ret.lastQupdateIteration = lastQupdateIteration;
+    ret.error = error;
+    ret.previousError = previousError;
+    ret.overfit = overfit;
+    ret.learningRate = learningRate;
+    ret.momentum = momentum;
+    ret.weightSum = weightSum;
+    ret.previousDeltas = previousDeltas == null ? null : previousDeltas.toDoubles();
+    ret.previousDeltasV = previousDeltasV == null ? null : previousDeltasV.clone();
+    ret.previousDeltasH = previousDeltasH == null ? null : previousDeltasH.clone();
+    ret.qOld = qOld == null ? null : qOld.clone();
+    ret.particles = particles == null ? null : particles.clone();
+
+    ret.seed = seed;
+    ret.samplerState = sampler.getState();
+    ret.workspaceStates = new long[workspaces == null ? 0 : workspaces.length];
+    for (int i = 0; i < ret.workspaceStates.length; i++) {
+      ret.workspaceStates[i] = workspaces[i].random.getState();
+    }
+    List<List<double[]>> baseOrder =
+        initialDataOrder != null ? initialDataOrder : trainingData;
+    Map<List<double[]>, Integer> indices = new IdentityHashMap<>();
+    for (int i = 0; i < baseOrder.size(); i++) {
+      indices.put(baseOrder.get(i), i);
+    }
+    ret.dataOrder = new int[trainingData.size()];
+    for (int i = 0; i < ret.dataOrder.length; i++) {
+      Integer index = indices.get(trainingData.get(i));
+      if (index == null) {
+        throw new IllegalStateException("Training data list " + i
+            + " has been replaced; use setTrainingData to change the lists");
+      }
+      ret.dataOrder[i] = index;
+    }
+    return ret;
+  }
+
+  private void scheduleCheckpoint(Path path) {
+    if (checkpointWriter == null) {
+      checkpointWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RBM checkpoint writer");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    pendingCheckpoint.set(capture());
+    checkpointWriter.execute(() -> {
+      RBMCheckpoint checkpoint = pendingCheckpoint.getAndSet(null);
+      if (checkpoint == null) {
+        return;
+      }
+      try {
+        writeCheckpoint(checkpoint, path);
+      } catch (IOException e) {
+        checkpointError = e;
+      }
+    });
+  }
+
+  private static void writeCheckpoint(RBMCheckpoint checkpoint, Path path) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      checkpoint.write(out);
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Updates the reconstruction error from the test data, and every overfitInterval iterations the
+   * overfit from the test and validation data. At most monitorSampleSize vectors of each set are
+   * evaluated, split across the worker threads.
+   */
+  private void updateError() {
+    this.error = average(testData, this::reconstructionError);
     double previousOverfit = overfit;
-    if (this.getIteration() % 3 == 0) {
+    if (this.getIteration() % overfitInterval == 0) {
       updateOverfit();
     }
     if (overfit < previousOverfit) {
@@ -239,106 +882,488 @@ public class RBMTrainer implements Trainer {
     previousError = this.error;
   }
 
+  /**
+   * Runs the CD chain from an input and returns the squared difference of the data and
+   * reconstruction statistics, sum_ij (v_i h_j - v'_i h'_j)^2. The sum factors into
+   * |v|^2 |h|^2 - 2 (v.v')(h.h') + |v'|^2 |h'|^2, so it costs O(V + H) after the chain.
+   */
+  private double reconstructionError(double[] input, Workspace workspace) {
+    double[] output = workspace.hiddenOutput;
+    double[] hiddenProbabilities = workspace.hidden;
+    double[] visibleProbabilities = input;
+    target.hiddenProbabilities(input, output);
+    for (int i = 0; i < cdCount; i++) {
+      target.hiddenProbabilities(visibleProbabilities, hiddenProbabilities);
+      int activeCount = RestrictedBoltzmannMachine.sampleActive(hiddenProbabilities,
+          workspace.activeHidden, workspace.random);
+      visibleProbabilities = workspace.visible;
+      target.visibleProbabilities(workspace.activeHidden, activeCount, visibleProbabilities);
+    }
+
+    return statisticsDistance(input, output, visibleProbabilities, hiddenProbabilities);
+  }
+
+  /**
+   * Returns sum_ij (v_i h_j - r_i s_j)^2, the squared distance of the outer products v h^T and
+   * r s^T, in O(V + H) from the dot products of the vectors.
+   */
+  static double statisticsDistance(double[] v, double[] h, double[] r, double[] s) {
+    int visibleCount = v.length;
+    int hiddenCount = h.length;
+    double vv = MatrixKernels.dot(v, 0, v, 0, visibleCount);
+    double vr = MatrixKernels.dot(v, 0, r, 0, visibleCount);
+    double rr = MatrixKernels.dot(r, 0, r, 0, visibleCount);
+    double hh = MatrixKernels.dot(h, 0, h, 0, hiddenCount);
+    double hs = MatrixKernels.dot(h, 0, s, 0, hiddenCount);
+    double ss = MatrixKernels.dot(s, 0, s, 0, hiddenCount);
+    return Math.max(0, vv * hh - 2 * vr * hs + rr * ss);
+  }
+
+  /**
+   * Sets the overfit to the difference of the average free energies of the validation and test
+   * data. The closed form of the free energy only holds for sigmoid hidden units, so the overfit
+   * is not measured for machines with other activation functions.
+   */
   private void updateOverfit() {
-    double averageTestEnergy = averageEnergy(testData);
-    double averageValidationEnergy = averageEnergy(validationData);
+    if (!FastSigmoid.canReplace(target.getFunction())) {
+      return;
+    }
+    VectorMetric freeEnergy = (input, workspace) -> target.freeEnergy(input, workspace.hidden);
+    double averageTestEnergy = average(testData, freeEnergy);
+    double averageValidationEnergy = average(validationData, freeEnergy);
     this.overfit = Math.abs(averageValidationEnergy - averageTestEnergy);
   }
 
+  /**
+   * Returns the last measured overfit, which stays zero for machines whose activation function is
+   * not the standard sigmoid.
+   */
   public double getOverfit() {
     return overfit;
   }
 
-  private double averageEnergy(List<double[]> data) {
-    double ret = 0;
+  /**
+   * Returns the sum of the weights as tracked by the trainer, NaN if it is not known.
+   */
+  double trackedWeightSum() {
+    return weightSum;
+  }
 
-    for (double[] input : data) {
-      boolean[] discreteInput = null;
-      boolean[] output = null;
-      for (int i = 0; i < cdCount; i++) {
-        discreteInput = RestrictedBoltzmannMachine.probabilitiesToBoolean(input);
-        output = target.hiddenState(discreteInput);
-        input = target.visibleProbabilities(output);
-      }
-      for (int i = 0; i < discreteInput.length; i++) {
-        if (discreteInput[i]) {
-          ret -= target.getVisibleBias(i) / data.size();
-        }
-      }
-      for (int j = 0; j < output.length; j++) {
-        if (output[j]) {
-          ret -= target.getHiddenBias(j) / data.size();
-          for (int i = 0; i < discreteInput.length; i++) {
-            if (discreteInput[i]) {
-              ret -= target.getWeight(i, j) / data.size();
-            }
-          }
-        }
-      }
+  /**
+   * Returns the average of a metric over at most monitorSampleSize vectors of the data. When the
+   * data are larger than the sample, consecutive measurements take consecutive windows of the
+   * data, wrapping around at the end, so that over time every vector is evaluated.
+   */
+  private double average(List<double[]> data, VectorMetric metric) {
+    int size = data.size();
+    int count = Math.min(size, monitorSampleSize);
+    if (count == 0) {
+      return 0;
     }
+    int offset = (int) ((long) (getIteration() / monitorInterval) * count % size);
+    List<double[]> sample = offset + count <= size ? data.subList(offset, offset + count)
+        : new AbstractList<double[]>() {
+          @Override
+          public double[] get(int index) {
+            return data.get((offset + index) % size);
+          }
 
-    return ret;
+          @Override
+          public int size() {
+            return count;
+          }
+        };
+    int workers = Math.min(threadCount, count);
+    double sum;
+    if (workers < 2) {
+      sum = new MetricTask(sample, metric, 0, 1).compute();
+    } else {
+      sum = pool.invoke(new MetricTask(sample, metric, 0, workers));
+    }
+    return sum / count;
   }
 
-  private void calculateWeightAdjust(double[] trainingSample, double[][] weightAdjust,
-      double[] visibleBiasAdjust, double[] hiddenBiasAdjust, double batchSize) {
-    boolean[] discreteInput = RestrictedBoltzmannMachine.probabilitiesToBoolean(trainingSample);
-    double[] hiddenProbabilities = target.hiddenProbabilities(discreteInput);
-    boolean[] hiddenState = RestrictedBoltzmannMachine.probabilitiesToBoolean(hiddenProbabilities);
+  /**
+   * Accumulates the contrastive divergence gradient of a whole minibatch. The minibatch is packed
+   * into a batch x visible matrix so that every step of the Gibbs chain, as well as the positive
+   * and negative statistics, is a single matrix-matrix product. In persistent mode the negative
+   * statistics come from the fantasy particles [firstParticle, lastParticle) instead, which are
+   * advanced one Gibbs step.
+   */
+  private void calculateWeightAdjust(List<double[]> batch, Workspace workspace, double scale,
+      int firstParticle, int lastParticle, double particleScale) {
+    int batchSize = batch.size();
+    int visibleCount = target.visibleCount();
+    int hiddenCount = target.hiddenCount();
+    workspace.ensureBatchCapacity(Math.max(batchSize, lastParticle - firstParticle));
+    int visibleLength = batchSize * visibleCount;
+    int hiddenLength = batchSize * hiddenCount;
+    double[] input = workspace.input;
+    for (int b = 0; b < batchSize; b++) {
+      System.arraycopy(batch.get(b), 0, input, b * visibleCount, visibleCount);
+    }
+    double[] visibleState = workspace.visibleState;
+    double[] hiddenProbabilities = workspace.hiddenProbabilities;
+    double[] hiddenState = workspace.hiddenState;
+    double[] rVisible = workspace.rVisible;
+    double[] rHidden = workspace.rHidden;
+    FastRandom random = workspace.random;
 
-    double[] visibleProbabilities = target.visibleProbabilities(hiddenState);
+    RestrictedBoltzmannMachine.sample(input, visibleState, visibleLength, random);
+    target.hiddenProbabilities(visibleState, hiddenProbabilities, batchSize);
+    addStatistics(workspace.gradient, input, hiddenProbabilities, batchSize, scale);
+    if (particles != null) {
+      advanceParticles(workspace, firstParticle, lastParticle, particleScale);
+      return;
+    }
 
-    double[] rVisible = visibleProbabilities.clone();
-    double[] rHidden = null;
+    RestrictedBoltzmannMachine.sample(hiddenProbabilities, hiddenState, hiddenLength, random);
+    target.visibleProbabilitiesOfStates(hiddenState, rVisible, batchSize, workspace.activeHidden);
 
     for (int i = 0; i < this.cdCount; i++) {
-      rHidden = target.hiddenProbabilities(rVisible);
-      rVisible =
-          target.visibleProbabilities(RestrictedBoltzmannMachine.probabilitiesToBoolean(rHidden));
+      target.hiddenProbabilities(rVisible, rHidden, batchSize);
+      RestrictedBoltzmannMachine.sample(rHidden, hiddenState, hiddenLength, random);
+      target.visibleProbabilitiesOfStates(hiddenState, rVisible, batchSize,
+          workspace.activeHidden);
     }
+    addStatistics(workspace.gradient, rVisible, rHidden, batchSize, -scale);
+  }
 
-    for (int i = 0; i < target.visibleCount(); i++) {
-      visibleBiasAdjust[i] += (trainingSample[i] - rVisible[i]) / batchSize;
-      for (int j = 0; j < target.hiddenCount(); j++) {
-        double dataExpected = trainingSample[i] * hiddenProbabilities[j];
-        double reconExpected = rVisible[i] * rHidden[j];
-        double pointError = dataExpected - reconExpected;
-        double dw = pointError;
-        weightAdjust[i][j] += dw / batchSize;
-      }
+  /**
+   * Advances the fantasy particles [firstParticle, lastParticle) one Gibbs step as one batch,
+   * and subtracts their statistics from the gradient of the workspace.
+   */
+  private void advanceParticles(Workspace workspace, int firstParticle, int lastParticle,
+      double scale) {
+    int count = lastParticle - firstParticle;
+    if (count == 0) {
+      return;
     }
-    for (int j = 0; j < target.hiddenCount(); j++) {
-      hiddenBiasAdjust[j] += (hiddenProbabilities[j] - rHidden[j]) / batchSize;
+    int visibleCount = target.visibleCount();
+    int visibleLength = count * visibleCount;
+    double[] state = workspace.visibleState;
+    double[] rVisible = workspace.rVisible;
+    double[] rHidden = workspace.rHidden;
+    double[] hiddenState = workspace.hiddenState;
+    FastRandom random = workspace.random;
+
+    System.arraycopy(particles, firstParticle * visibleCount, state, 0, visibleLength);
+    target.hiddenProbabilities(state, rHidden, count);
+    RestrictedBoltzmannMachine.sample(rHidden, hiddenState, count * target.hiddenCount(),
+        random);
+    target.visibleProbabilitiesOfStates(hiddenState, rVisible, count, workspace.activeHidden);
+    RestrictedBoltzmannMachine.sample(rVisible, state, visibleLength, random);
+    System.arraycopy(state, 0, particles, firstParticle * visibleCount, visibleLength);
+    target.hiddenProbabilities(rVisible, rHidden, count);
+    addStatistics(workspace.gradient, rVisible, rHidden, count, -scale);
+  }
+
+  /**
+   * Adds scale times the visible-hidden correlations and the unit activities of a batch to a
+   * gradient. The correlations of each hidden shard of the machine are accumulated in parallel.
+   */
+  private void addStatistics(Gradient gradient, double[] visible, double[] hidden, int rows,
+      double scale) {
+    int visibleCount = target.visibleCount();
+    int hiddenCount = target.hiddenCount();
+    target.addCorrelations(gradient.weights, visible, hidden, rows, scale);
+    for (int b = 0; b < rows; b++) {
+      for (int i = 0; i < visibleCount; i++) {
+        gradient.visibleBias[i] += visible[b * visibleCount + i] * scale;
+      }
+      for (int j = 0; j < hiddenCount; j++) {
+        gradient.hiddenBias[j] += hidden[b * hiddenCount + j] * scale;
+      }
     }
   }
 
-  private void iterateInternalLump(int interval, int start, double[][] weightAdjust,
-      double[] visibleBiasAdjust, double[] hiddenBiasAdjust) {
+  private void iterateInternalLump(int interval, int start) {
     List<double[]> currentList =
         trainingData.get(0).subList(start, Math.min((start + interval), trainingData.size()));
 
-    processMinibatch(weightAdjust, visibleBiasAdjust, hiddenBiasAdjust, currentList);
+    processMinibatch(currentList);
   }
 
-  private void iterateInternalMinibatch(int index, double[][] weightAdjust,
-      double[] visibleBiasAdjust, double[] hiddenBiasAdjust) {
-    List<double[]> currentList = new ArrayList<>();
+  private void iterateInternalMinibatch(int index) {
+    minibatch.clear();
     for (List<double[]> list : trainingData) {
       if (list.size() > index) {
-        currentList.add(list.get(index));
+        minibatch.add(list.get(index));
+      }
+    }
+    processMinibatch(minibatch);
+  }
+
+  private void processMinibatch(List<double[]> currentList) {
+    double scale = 1.0 / currentList.size();
+    int leaves = Math.min(threadCount, currentList.size() / MIN_TASK_SIZE);
+    if (leaves < 2) {
+      Workspace workspace = workspace(0);
+      ensureParticles();
+      calculateWeightAdjust(currentList, workspace, scale, 0, persistentChains,
+          1.0 / persistentChains);
+      applyWeightAdjust(workspace.gradient);
+      return;
+    }
+    workspace(0);
+    ensureParticles();
+    pool.invoke(new GradientTask(currentList, 0, leaves, scale, 0, persistentChains));
+    applyWeightAdjust(workspaces[0].gradient);
+  }
+
+  /**
+   * Trains one epoch with asynchronous workers. The samples are laid out in the order the
+   * synchronous minibatches would take them, and the workers claim one minibatch at a time with
+   * a single atomic increment.
+   */
+  private void iterateAsynchronously() {
+    List<double[]> samples = new ArrayList<>();
+    int size = 0;
+    for (List<double[]> l : trainingData) {
+      size = Math.max(size, l.size());
+    }
+    for (int i = 0; i < size; i++) {
+      for (List<double[]> list : trainingData) {
+        if (list.size() > i) {
+          samples.add(list.get(i));
+        }
+      }
+    }
+    trainAsynchronously(samples, trainingData.size() == 1 ? 10 : trainingData.size());
+  }
+
+  /**
+   * Trains on a list of samples with asynchronous workers that claim batchSize samples at a time.
+   */
+  private void trainAsynchronously(List<double[]> samples, int batchSize) {
+    workspace(0);
+    ensureParticles();
+    updateQ();
+    int stripes = Math.min(target.visibleCount(), STRIPES_PER_THREAD * threadCount);
+    if (stripeLocks == null || stripeLocks.length != stripes) {
+      stripeLocks = new Object[stripes];
+      for (int s = 0; s < stripes; s++) {
+        stripeLocks[s] = new Object();
+      }
+      stripeSums = new double[stripes];
+    }
+    // The sums of the stripes are only known once each has been updated; until then the total is
+    // spread evenly, which keeps the penalty right.
+    if (Double.isNaN(weightSum)) {
+      weightSum = target.weightSum();
+    }
+    Arrays.fill(stripeSums, weightSum / stripes);
+    pool.invoke(new AsynchronousTask(samples, batchSize, new AtomicInteger(), 0, threadCount));
+    weightSum = MatrixKernels.sum(stripeSums);
+  }
+
+  /**
+   * Applies a gradient to the shared parameters while other workers keep computing theirs, unless
+   * it is stale. The gradients are computed without any lock, so a gradient may see the weights
+   * in the middle of other updates, some rows before and some after them. Its staleness is the
+   * number of updates applied since its worker read the update count, seen, before computing it;
+   * with every other worker applying at most one update meanwhile it is below the thread count,
+   * and a gradient staler than that, from a worker that fell behind, is cleared and rejected
+   * instead. The check and the claim of the next update count happen under the bias lock, with
+   * the biases. The weights are then updated one stripe of visible rows at a time under the lock
+   * of the stripe, starting from the worker's own stripe so that concurrent updates usually touch
+   * different stripes, so no update is lost.
+   * 
+   * @return whether the gradient was applied
+   */
+  private boolean applyAsynchronously(Gradient gradient, int firstStripe, long seen) {
+    double penalty;
+    synchronized (biasLock) {
+      if (updateCount.get() - seen > threadCount - 1) {
+        gradient.clear();
+        return false;
       }
+      updateCount.incrementAndGet();
+      penalty = applyBiasAdjust(gradient);
     }
-    processMinibatch(weightAdjust, visibleBiasAdjust, hiddenBiasAdjust, currentList);
+    int visibleCount = target.visibleCount();
+    int stripes = stripeLocks.length;
+    for (int n = 0; n < stripes; n++) {
+      int s = (firstStripe + n) % stripes;
+      synchronized (stripeLocks[s]) {
+        stripeSums[s] = applyWeightAdjust(gradient, penalty, s * visibleCount / stripes,
+            (s + 1) * visibleCount / stripes);
+      }
+    }
+    synchronized (biasLock) {
+      weightSum = MatrixKernels.sum(stripeSums);
+    }
+    return true;
   }
 
-  private void processMinibatch(double[][] weightAdjust, double[] visibleBiasAdjust,
-      double[] hiddenBiasAdjust, List<double[]> currentList) {
-    int batchSize = currentList.size();
-    for (double[] trainingSample : currentList) {
-      calculateWeightAdjust(trainingSample, weightAdjust, visibleBiasAdjust, hiddenBiasAdjust,
-          batchSize);
+  /**
+   * Creates the fantasy particles in persistent mode, if they do not exist yet, by sampling
+   * binary states from randomly chosen training vectors.
+   */
+  private void ensureParticles() {
+    if (persistentChains == 0 || particles != null) {
+      return;
+    }
+    int visibleCount = target.visibleCount();
+    particles = new double[persistentChains * visibleCount];
+    double[] state = new double[visibleCount];
+    for (int p = 0; p < persistentChains; p++) {
+      // A streamed source is not held in memory, so its chains start from the validation set,
+      // which is part of the training data.
+      List<double[]> list = source != null ? validationData
+          : trainingData.get(sampler.nextInt(trainingData.size()));
+      RestrictedBoltzmannMachine.sample(list.get(sampler.nextInt(list.size())), state,
+          visibleCount, sampler);
+      System.arraycopy(state, 0, particles, p * visibleCount, visibleCount);
     }
-    applyWeightAdjust(weightAdjust, visibleBiasAdjust, hiddenBiasAdjust);
+  }
+
+  /**
+   * Returns the workspace of the given worker, creating the workspaces of all workers with their
+   * own generators on first use.
+   */
+  private Workspace workspace(int worker) {
+    if (workspaces == null) {
+      workspaces = new Workspace[threadCount];
+      for (int i = 0; i < threadCount; i++) {
+        workspaces[i] = new Workspace(target.visibleCount(), target.hiddenCount(),
+            target.getPrecision(), sampler.split());
+      }
+    }
+    return workspaces[worker];
+  }
+
+  public int getMonitorInterval() {
+    return monitorInterval;
+  }
+
+  /**
+   * Sets how often, in iterations, the error is measured on the test data.
+   */
+  public void setMonitorInterval(int monitorInterval) {
+    if (monitorInterval < 1) {
+      throw new IllegalArgumentException("Monitor interval must be positive, was "
+          + monitorInterval);
+    }
+    this.monitorInterval = monitorInterval;
+  }
+
+  public int getOverfitInterval() {
+    return overfitInterval;
+  }
+
+  /**
+   * Sets how often, in iterations, the overfit is measured. The overfit is only measured on
+   * iterations where the error is also measured.
+   */
+  public void setOverfitInterval(int overfitInterval) {
+    if (overfitInterval < 1) {
+      throw new IllegalArgumentException("Overfit interval must be positive, was "
+          + overfitInterval);
+    }
+    this.overfitInterval = overfitInterval;
+  }
+
+  public int getMonitorSampleSize() {
+    return monitorSampleSize;
+  }
+
+  /**
+   * Sets the largest number of test and validation vectors evaluated when monitoring.
+   */
+  public void setMonitorSampleSize(int monitorSampleSize) {
+    if (monitorSampleSize < 1) {
+      throw new IllegalArgumentException("Monitor sample size must be positive, was "
+          + monitorSampleSize);
+    }
+    this.monitorSampleSize = monitorSampleSize;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Sets the number of threads the gradient of a minibatch is computed on. With more than one
+   * thread, each minibatch is split across a fork/join pool of that size.
+   * 
+   * @param threadCount the thread count, at least one
+   */
+  public void setThreadCount(int threadCount) {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Thread count must be positive, was " + threadCount);
+    }
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    this.threadCount = threadCount;
+    this.workspaces = null;
+    if (threadCount > 1) {
+      pool = new ForkJoinPool(threadCount);
+    }
+  }
+
+  /**
+   * Shuts down the worker threads and the checkpoint writer of the trainer. Checkpoints that
+   * have already been scheduled are still written. A closed trainer keeps working on the calling
+   * thread alone, until {@link #setThreadCount(int)} is called again.
+   */
+  @Override
+  public void close() {
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    if (checkpointWriter != null) {
+      checkpointWriter.shutdown();
+      checkpointWriter = null;
+    }
+    threadCount = 1;
+    workspaces = null;
+  }
+
+  public int getPersistentChains() {
+    return persistentChains;
+  }
+
+  /**
+   * Switches to persistent contrastive divergence with the given number of fantasy particles, or
+   * back to plain contrastive divergence with zero. In persistent mode the negative phase does not
+   * restart from the data: the particles are kept between minibatches and advanced one Gibbs step
+   * per minibatch, all of them as one batch split across the threads, so the CD count is not
+   * used. The particles are created from the training data on first use and again after
+   * {@link #initialize(long)}. In asynchronous mode each thread advances its own share of the
+   * particles, so there must be at least as many particles as threads.
+   * 
+   * @param persistentChains the number of fantasy particles, zero to disable
+   */
+  public void setPersistentChains(int persistentChains) {
+    if (persistentChains < 0) {
+      throw new IllegalArgumentException("Persistent chain count must not be negative, was "
+          + persistentChains);
+    }
+    this.persistentChains = persistentChains;
+    this.particles = null;
+  }
+
+  public boolean isAsynchronous() {
+    return asynchronous;
+  }
+
+  /**
+   * Chooses asynchronous training. Instead of splitting every minibatch across the threads and
+   * waiting for all of them, each thread runs its own contrastive divergence chains on whole
+   * minibatches it claims from the training data, and applies each gradient to the shared
+   * machine as soon as it is done, so no thread waits at a barrier. The updates are applied under
+   * striped locks, but the gradients are computed from weights other threads may be updating. The
+   * staleness of a gradient, the number of updates applied since its computation started, is
+   * bounded by the thread count less one; a thread that falls further behind computes its
+   * gradient again. Asynchronous training needs more than one thread, and is not reproducible,
+   * since the order of the updates depends on thread timing.
+   */
+  public void setAsynchronous(boolean asynchronous) {
+    this.asynchronous = asynchronous;
   }
 
   public void setIteration(int iteration) {
@@ -351,6 +1376,58 @@ public class RBMTrainer implements Trainer {
 
   public void setTrainingData(List<List<double[]>> newData) {
     this.trainingData = newData;
+    this.initialDataOrder = new ArrayList<>(newData);
+    this.source = null;
+  }
+
+  /**
+   * Streams the training data from a source instead, see
+   * {@link #RBMTrainer(double, RestrictedBoltzmannMachine, TrainingSource)}. The trainer must be
+   * initialized again.
+   */
+  public void setTrainingSource(TrainingSource source) {
+    if (source.visibleCount() != target.visibleCount()) {
+      throw new IllegalArgumentException("Source vectors have length " + source.visibleCount()
+          + ", the target has " + target.visibleCount() + " visible units");
+    }
+    this.source = source;
+    this.trainingData = new ArrayList<>();
+    this.initialDataOrder = null;
+    this.testData = new ArrayList<>();
+    this.sampler = null;
+  }
+
+  public TrainingSource getTrainingSource() {
+    return source;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the number of vectors in a minibatch of a streamed source.
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+    }
+    this.batchSize = batchSize;
+  }
+
+  public int getHoldoutSize() {
+    return holdoutSize;
+  }
+
+  /**
+   * Sets the largest number of vectors of a streamed source held out for testing, and copied for
+   * validation; at most a fifth of the source is used for each.
+   */
+  public void setHoldoutSize(int holdoutSize) {
+    if (holdoutSize < 1) {
+      throw new IllegalArgumentException("Holdout size must be positive, was " + holdoutSize);
+    }
+    this.holdoutSize = holdoutSize;
   }
 
   private int lastQupdateIteration = 0;
@@ -360,15 +1437,18 @@ public class RBMTrainer implements Trainer {
       return;
     }
     lastQupdateIteration = getIteration();
-    double[] qCurrent = new double[target.hiddenCount()];
+    Workspace workspace = workspace(0);
+    double[] qCurrent = workspace.hiddenMean;
+    Arrays.fill(qCurrent, 0);
+    double[] output = workspace.hiddenOutput;
     for (double[] input : testData) {
-      double[] output = target.hiddenProbabilities(input);
+      target.hiddenProbabilities(input, output);
       for (int i = 0; i < output.length; i++) {
         qCurrent[i] += output[i] / testData.size();
       }
     }
     if (qOld == null) {
-      qOld = qCurrent;
+      qOld = qCurrent.clone();
     } else {
       for (int i = 0; i < qCurrent.length; i++) {
         qOld[i] = qDecay * qOld[i] + (1 - qDecay) * qCurrent[i];
@@ -1,13 +1,27 @@
 package com.haem.ml.rbm;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.encog.engine.network.activation.ActivationFunction;
 import org.encog.engine.network.activation.ActivationSigmoid;
 
+import com.haem.ml.utils.FastRandom;
+import com.haem.ml.utils.FastSigmoid;
+import com.haem.ml.utils.MatrixKernels;
+
 public class RestrictedBoltzmannMachine implements Cloneable {
-  private double[][] weights;
+  /**
+   * Visible-to-hidden weights as a flat row-major visible x hidden matrix, in the precision of
+   * the machine; the weight between visible unit i and hidden unit j is at
+   * {@code i * hiddenCount() + j}.
+   */
+  private WeightMatrix weights;
 
   private double[] visibleBias;
   private double[] hiddenBias;
@@ -15,47 +29,138 @@ public class RestrictedBoltzmannMachine implements Cloneable {
 
   private ActivationFunction function;
 
+  /**
+   * Whether the standard sigmoid must be evaluated exactly by the activation function rather than
+   * by {@link FastSigmoid}, and whether the fast path is in use.
+   */
+  private boolean exactActivation;
+  private boolean fastSigmoid;
+
+  private int shardCount = 1;
+
+  /**
+   * Idle buffers of sharded computations. A computation takes one set for its duration, so
+   * concurrent computations, and computations started by a pool thread while it waits for another,
+   * never share buffers; the pool only grows to the largest number that ever ran at once. The
+   * pool is a plain deque under its own lock, so taking and returning a set allocates nothing.
+   */
+  private final Deque<ShardBuffers> shardBuffers = new ArrayDeque<>();
+
   public ActivationFunction getFunction() {
     return function;
   }
 
+  /**
+   * Sets the activation function. The standard {@link ActivationSigmoid} is evaluated with
+   * {@link FastSigmoid} unless exact activation has been requested.
+   */
   public void setFunction(ActivationFunction function) {
     this.function = function;
+    this.fastSigmoid = !exactActivation && FastSigmoid.canReplace(function);
+  }
+
+  public boolean isExactActivation() {
+    return exactActivation;
+  }
+
+  /**
+   * Chooses whether a sigmoid activation is computed exactly by the activation function, or with
+   * the table approximation of {@link FastSigmoid}, which is the default.
+   */
+  public void setExactActivation(boolean exactActivation) {
+    this.exactActivation = exactActivation;
+    setFunction(function);
+  }
+
+  /**
+   * Applies the activation function to {@code size} elements of d starting at start.
+   */
+  private void activate(double[] d, int start, int size) {
+    if (fastSigmoid) {
+      FastSigmoid.apply(d, start, size);
+    } else {
+      function.activationFunction(d, start, size);
+    }
   }
 
   public RestrictedBoltzmannMachine(int visible, int hidden) {
-    weights = new double[visible][hidden];
+    this(visible, hidden, Precision.DOUBLE);
+  }
+
+  /**
+   * Creates a machine that stores its weights in the given precision. Training a
+   * {@link Precision#FLOAT} machine also keeps the weight gradients and momentum in single
+   * precision.
+   */
+  public RestrictedBoltzmannMachine(int visible, int hidden, Precision precision) {
+    weights = WeightMatrix.create(precision, visible, hidden);
     visibleBias = new double[visible];
     hiddenBias = new double[hidden];
-    this.function = new ActivationSigmoid();
+    setFunction(new ActivationSigmoid());
   }
 
   public double[] visibleProbabilities(boolean[] hidden) {
+    int[] active = new int[hidden.length];
+    int activeCount = activeIndices(hidden, active);
     double[] ret = new double[visibleBias.length];
-    for (int i = 0; i < ret.length; i++) {
-      double wh = visibleBias[i];
-      for (int j = 0; j < hiddenBias.length; j++) {
-        wh += (hidden[j] ? weights[i][j] : 0);
-      }
-      ret[i] = wh;
-    }
-    function.activationFunction(ret, 0, ret.length);
+    visibleProbabilities(active, activeCount, ret);
     return ret;
   }
 
+  /**
+   * Computes the visible probabilities for a binary hidden state given as the list of its active
+   * units. The cost is proportional to the number of active units rather than the layer width.
+   * 
+   * @param activeHidden indices of the active hidden units
+   * @param activeCount number of valid entries in activeHidden
+   * @param out array of visibleCount() for the probabilities
+   */
+  public void visibleProbabilities(int[] activeHidden, int activeCount, double[] out) {
+    System.arraycopy(visibleBias, 0, out, 0, visibleBias.length);
+    weights.addColumns(activeHidden, activeCount, out, 0);
+    activate(out, 0, visibleBias.length);
+  }
+
+  public double[] visibleProbabilities(double[] hidden) {
+    double[] ret = new double[visibleBias.length];
+    visibleProbabilities(hidden, ret);
+    return ret;
+  }
+
+  /**
+   * Computes the visible probabilities for a hidden vector into a caller-provided array.
+   * 
+   * @param hidden the hidden vector
+   * @param out array of visibleCount() for the probabilities
+   */
+  public void visibleProbabilities(double[] hidden, double[] out) {
+    System.arraycopy(visibleBias, 0, out, 0, visibleBias.length);
+    mergeShards(ShardOperation.ADD_MATRIX_VECTOR, hidden, out, 1, visibleBias.length, null);
+    activate(out, 0, visibleBias.length);
+  }
+
   public double[] hiddenProbabilities(boolean[] visible) {
+    int[] active = new int[visible.length];
+    int activeCount = activeIndices(visible, active);
     double[] ret = new double[hiddenBias.length];
-    for (int i = 0; i < ret.length; i++) {
-      double wh = hiddenBias[i];
-      for (int j = 0; j < hiddenBias.length; j++) {
-        wh += (visible[j] ? weights[j][i] : 0);
-      }
-      ret[i] = wh;
-    }
-    function.activationFunction(ret, 0, ret.length);
+    hiddenProbabilities(active, activeCount, ret);
     return ret;
   }
 
+  /**
+   * Computes the hidden probabilities for a binary visible state given as the list of its active
+   * units, by summing the weight rows of those units only.
+   * 
+   * @param activeVisible indices of the active visible units
+   * @param activeCount number of valid entries in activeVisible
+   * @param out array of hiddenCount() for the probabilities
+   */
+  public void hiddenProbabilities(int[] activeVisible, int activeCount, double[] out) {
+    System.arraycopy(hiddenBias, 0, out, 0, hiddenBias.length);
+    weights.addRows(activeVisible, activeCount, out);
+    activate(out, 0, hiddenBias.length);
+  }
+
   public boolean[] hiddenState(boolean[] visibleState) {
 
     double[] probabilities = hiddenProbabilities(visibleState);
@@ -70,54 +175,381 @@ public class RestrictedBoltzmannMachine implements Cloneable {
 
   public double[] hiddenProbabilities(double[] visible) {
     double[] ret = new double[hiddenBias.length];
-    for (int i = 0; i < ret.length; i++) {
-      double wh = hiddenBias[i];
-      for (int j = 0; j < hiddenBias.length; j++) {
-        wh += visible[j] * weights[j][i];
+    hiddenProbabilities(visible, ret);
+    return ret;
+  }
+
+  /**
+   * Computes the hidden probabilities for a visible vector into a caller-provided array.
+   * 
+   * @param visible the visible vector
+   * @param out array of hiddenCount() for the probabilities
+   */
+  public void hiddenProbabilities(double[] visible, double[] out) {
+    System.arraycopy(hiddenBias, 0, out, 0, hiddenBias.length);
+    addVectorMatrix(visible, out);
+    activate(out, 0, hiddenBias.length);
+  }
+
+  /**
+   * Computes the hidden probabilities of a minibatch.
+   * 
+   * @param visible the visible vectors as a flat batchSize x visibleCount() matrix
+   * @param out a batchSize x hiddenCount() matrix for the probabilities
+   * @param batchSize the number of vectors in the batch
+   */
+  public void hiddenProbabilities(double[] visible, double[] out, int batchSize) {
+    fillRows(out, hiddenBias, batchSize);
+    forEachShard(ShardOperation.MULTIPLY, weights, visible, null, out, batchSize, 0);
+    activate(out, 0, batchSize * hiddenBias.length);
+  }
+
+  /**
+   * Computes the visible probabilities of a minibatch.
+   * 
+   * @param hidden the hidden vectors as a flat batchSize x hiddenCount() matrix
+   * @param out a batchSize x visibleCount() matrix for the probabilities
+   * @param batchSize the number of vectors in the batch
+   */
+  public void visibleProbabilities(double[] hidden, double[] out, int batchSize) {
+    fillRows(out, visibleBias, batchSize);
+    mergeShards(ShardOperation.MULTIPLY_TRANSPOSE_RIGHT, hidden, out, batchSize,
+        batchSize * visibleBias.length, null);
+    activate(out, 0, batchSize * visibleBias.length);
+  }
+
+  /**
+   * Computes the visible probabilities of a minibatch of binary hidden states. Each row only
+   * visits the columns of its active hidden units, which is much cheaper than
+   * {@link #visibleProbabilities(double[], double[], int)} for sparse hidden layers.
+   * 
+   * @param hiddenStates the hidden states, ones and zeroes, as a batchSize x hiddenCount() matrix
+   * @param out a batchSize x visibleCount() matrix for the probabilities
+   * @param batchSize the number of vectors in the batch
+   */
+  public void visibleProbabilitiesOfStates(double[] hiddenStates, double[] out, int batchSize) {
+    visibleProbabilitiesOfStates(hiddenStates, out, batchSize, new int[hiddenBias.length]);
+  }
+
+  /**
+   * As {@link #visibleProbabilitiesOfStates(double[], double[], int)}, with a caller-provided
+   * scratch array of hiddenCount() for the active unit indices.
+   */
+  public void visibleProbabilitiesOfStates(double[] hiddenStates, double[] out, int batchSize,
+      int[] active) {
+    int visibleCount = visibleBias.length;
+    fillRows(out, visibleBias, batchSize);
+    mergeShards(ShardOperation.ADD_ACTIVE_COLUMNS, hiddenStates, out, batchSize,
+        batchSize * visibleCount, active);
+    activate(out, 0, batchSize * visibleCount);
+  }
+
+  /**
+   * Adds the weight columns of the active hidden units in [columnStart, columnEnd) of each row of
+   * a batch of states to the corresponding row of y.
+   */
+  private void addActiveColumns(double[] hiddenStates, double[] y, int batchSize, int[] active,
+      int columnStart, int columnEnd) {
+    int visibleCount = visibleBias.length;
+    int hiddenCount = hiddenBias.length;
+    for (int b = 0; b < batchSize; b++) {
+      int activeCount = MatrixKernels.nonZeroIndices(hiddenStates, b * hiddenCount + columnStart,
+          columnEnd - columnStart, active);
+      for (int k = 0; k < activeCount; k++) {
+        active[k] += columnStart;
+      }
+      weights.addColumns(active, activeCount, y, b * visibleCount);
+    }
+  }
+
+  /**
+   * Computes out += visible*W in the precision of the weights.
+   */
+  private void addVectorMatrix(double[] visible, double[] out) {
+    forEachShard(ShardOperation.ADD_VECTOR_MATRIX, weights, visible, null, out, 1, 0);
+  }
+
+  /**
+   * Adds scale times the visible-hidden correlations of a batch, X^T Y for the batch x
+   * visibleCount() matrix X and the batch x hiddenCount() matrix Y, to a matrix of the shape of
+   * the weights. The columns are split into the shards of the machine, like its own products.
+   */
+  void addCorrelations(WeightMatrix matrix, double[] visible, double[] hidden, int batchSize,
+      double scale) {
+    forEachShard(ShardOperation.ADD_CORRELATIONS, matrix, visible, hidden, null, batchSize,
+        scale);
+  }
+
+  /**
+   * The computations that are split into shards of the hidden columns.
+   */
+  private enum ShardOperation {
+    MULTIPLY, ADD_VECTOR_MATRIX, ADD_MATRIX_VECTOR, MULTIPLY_TRANSPOSE_RIGHT, ADD_ACTIVE_COLUMNS,
+    ADD_CORRELATIONS
+  }
+
+  /**
+   * One shard of a computation. The tasks are kept with the shard buffers and reinitialized for
+   * every computation, so running the shards in parallel allocates nothing.
+   */
+  private final class ShardTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    ShardOperation operation;
+    WeightMatrix matrix;
+    double[] input;
+    double[] other;
+    double[] out;
+    int[] active;
+    int rows;
+    double scale;
+    int columnStart;
+    int columnEnd;
+
+    @Override
+    protected void compute() {
+      runShard(operation, matrix, input, other, out, active, rows, scale, columnStart,
+          columnEnd);
+    }
+  }
+
+  /**
+   * The partial sums of every shard but the first, the active unit indices and the tasks of every
+   * shard, grown as needed and reused between computations.
+   */
+  private static final class ShardBuffers {
+    double[][] partials = new double[0][];
+    int[][] active = new int[0][];
+    ShardTask[] tasks = new ShardTask[0];
+  }
+
+  /**
+   * Runs an operation over the hidden columns [columnStart, columnEnd). The operations that add
+   * into out only ever read the weights of the machine; the correlations are added into matrix.
+   */
+  private void runShard(ShardOperation operation, WeightMatrix matrix, double[] input,
+      double[] other, double[] out, int[] active, int rows, double scale, int columnStart,
+      int columnEnd) {
+    switch (operation) {
+      case MULTIPLY:
+        matrix.multiply(input, out, rows, columnStart, columnEnd);
+        break;
+      case ADD_VECTOR_MATRIX:
+        matrix.addVectorMatrix(input, out, columnStart, columnEnd);
+        break;
+      case ADD_MATRIX_VECTOR:
+        matrix.addMatrixVector(input, out, columnStart, columnEnd);
+        break;
+      case MULTIPLY_TRANSPOSE_RIGHT:
+        matrix.multiplyTransposeRight(input, out, rows, columnStart, columnEnd);
+        break;
+      case ADD_ACTIVE_COLUMNS:
+        addActiveColumns(input, out, rows, active, columnStart, columnEnd);
+        break;
+      case ADD_CORRELATIONS:
+        matrix.addTransposeLeftProduct(input, other, rows, scale, columnStart, columnEnd);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown shard operation " + operation);
+    }
+  }
+
+  /**
+   * Runs an operation over every shard of the hidden columns, in parallel when there is more than
+   * one. The shards write disjoint columns of the output, so nothing needs to be merged.
+   */
+  private void forEachShard(ShardOperation operation, WeightMatrix matrix, double[] input,
+      double[] other, double[] out, int rows, double scale) {
+    int hiddenCount = hiddenBias.length;
+    int shards = shardCount;
+    if (shards == 1) {
+      runShard(operation, matrix, input, other, out, null, rows, scale, 0, hiddenCount);
+      return;
+    }
+    ShardBuffers buffers = borrowShardBuffers(shards, 0);
+    for (int s = 0; s < shards; s++) {
+      prepare(buffers.tasks[s], operation, matrix, input, other, out, null, rows, scale,
+          s * hiddenCount / shards, (s + 1) * hiddenCount / shards);
+    }
+    runShards(buffers);
+  }
+
+  /**
+   * Runs an operation of the weights over every shard of the hidden columns, in parallel when
+   * there is more than one, for outputs that every shard contributes to. The first shard adds into
+   * out, the others into partial sums of the given length that are then added to out. The partial
+   * sums, the active unit arrays and the tasks of the shards come from the pool of idle buffers.
+   * 
+   * @param active the active unit scratch of the first shard, or null if the task does not use it
+   */
+  private void mergeShards(ShardOperation operation, double[] input, double[] out, int rows,
+      int length, int[] active) {
+    int hiddenCount = hiddenBias.length;
+    int shards = shardCount;
+    if (shards == 1) {
+      runShard(operation, weights, input, null, out, active, rows, 0, 0, hiddenCount);
+      return;
+    }
+    ShardBuffers buffers = borrowShardBuffers(shards, length);
+    for (int s = 0; s < shards; s++) {
+      double[] y = s == 0 ? out : buffers.partials[s];
+      int[] shardActive = s == 0 && active != null ? active : buffers.active[s];
+      prepare(buffers.tasks[s], operation, weights, input, null, y, shardActive, rows, 0,
+          s * hiddenCount / shards, (s + 1) * hiddenCount / shards);
+    }
+    runShards(buffers);
+    for (int s = 1; s < shards; s++) {
+      double[] partial = buffers.partials[s];
+      for (int i = 0; i < length; i++) {
+        out[i] += partial[i];
+      }
+    }
+  }
+
+  private static void prepare(ShardTask task, ShardOperation operation, WeightMatrix matrix,
+      double[] input, double[] other, double[] out, int[] active, int rows, double scale,
+      int columnStart, int columnEnd) {
+    task.reinitialize();
+    task.operation = operation;
+    task.matrix = matrix;
+    task.input = input;
+    task.other = other;
+    task.out = out;
+    task.active = active;
+    task.rows = rows;
+    task.scale = scale;
+    task.columnStart = columnStart;
+    task.columnEnd = columnEnd;
+  }
+
+  /**
+   * Takes a set of idle buffers with a task and an active unit array for each of the given number
+   * of shards, and cleared partial sums of the given length for every shard but the first.
+   */
+  private ShardBuffers borrowShardBuffers(int shards, int length) {
+    ShardBuffers buffers;
+    synchronized (shardBuffers) {
+      buffers = shardBuffers.poll();
+    }
+    if (buffers == null) {
+      buffers = new ShardBuffers();
+    }
+    if (buffers.tasks.length != shards) {
+      buffers.partials = Arrays.copyOf(buffers.partials, shards);
+      buffers.active = Arrays.copyOf(buffers.active, shards);
+      buffers.tasks = new ShardTask[shards];
+      for (int s = 0; s < shards; s++) {
+        buffers.tasks[s] = new ShardTask();
+      }
+    }
+    int hiddenCount = hiddenBias.length;
+    for (int s = 0; s < shards; s++) {
+      if (s > 0 && length > 0) {
+        if (buffers.partials[s] == null || buffers.partials[s].length < length) {
+          buffers.partials[s] = new double[length];
+        } else {
+          Arrays.fill(buffers.partials[s], 0, length, 0);
+        }
+      }
+      if (buffers.active[s] == null || buffers.active[s].length < hiddenCount) {
+        buffers.active[s] = new int[hiddenCount];
       }
-      ret[i] = wh;
     }
-    function.activationFunction(ret, 0, ret.length);
+    return buffers;
+  }
+
+  /**
+   * Runs the prepared tasks of the buffers, the first on the calling thread, and returns the
+   * buffers to the pool. The references the tasks hold are dropped, so idle buffers do not keep
+   * the arrays of the last computation alive.
+   */
+  private void runShards(ShardBuffers buffers) {
+    try {
+      ForkJoinTask.invokeAll(buffers.tasks);
+    } finally {
+      for (ShardTask task : buffers.tasks) {
+        task.matrix = null;
+        task.input = null;
+        task.other = null;
+        task.out = null;
+        task.active = null;
+      }
+      synchronized (shardBuffers) {
+        shardBuffers.push(buffers);
+      }
+    }
+  }
+
+  private static void fillRows(double[] matrix, double[] row, int rows) {
+    for (int r = 0; r < rows; r++) {
+      System.arraycopy(row, 0, matrix, r * row.length, row.length);
+    }
+  }
+
+  /**
+   * Returns the free energy of a visible vector, F(v) = -b.v - sum_j log(1 + exp(c_j + (vW)_j)).
+   * This is the closed form of the energy with the hidden units summed out, and assumes sigmoid
+   * hidden units.
+   * 
+   * @param visible the visible vector
+   * @param scratch array of hiddenCount() for the hidden inputs
+   */
+  public double freeEnergy(double[] visible, double[] scratch) {
+    System.arraycopy(hiddenBias, 0, scratch, 0, hiddenBias.length);
+    addVectorMatrix(visible, scratch);
+    double ret = -MatrixKernels.dot(visibleBias, 0, visible, 0, visibleBias.length);
+    for (int j = 0; j < hiddenBias.length; j++) {
+      double x = scratch[j];
+      ret -= x > 0 ? x + Math.log1p(Math.exp(-x)) : Math.log1p(Math.exp(x));
+    }
     return ret;
   }
 
+  public double freeEnergy(double[] visible) {
+    return freeEnergy(visible, new double[hiddenBias.length]);
+  }
+
   public void reset() {
     this.reset(new Random());
   }
 
   public void reset(Random random) {
-    for (int i = 0; i < weights.length; i++) {
-      for (int j = 0; j < weights[i].length; j++) {
-        weights[i][j] = random.nextGaussian() * 0.01;
-      }
+    for (int i = 0; i < weights.size(); i++) {
+      weights.set(i, random.nextGaussian() * 0.01);
     }
   }
 
   public double getWeight(int i, int j) {
-    return weights[i][j];
+    return weights.get(i * hiddenBias.length + j);
   }
 
   public void setWeight(double w, int i, int j) {
     if (!Double.isFinite(w)) {
       throw new IllegalArgumentException("Attempt to set non-finite weight " + w);
     }
-    weights[i][j] = w;
+    weights.set(i * hiddenBias.length + j, w);
   }
 
   public double getVisibleBias(int i) {
     return visibleBias[i];
   }
 
+  /**
+   * Sets a visible bias, rounded to single precision in a {@link Precision#FLOAT} machine. The
+   * biases are few, so they are kept in double arrays whatever the precision.
+   */
   public void setVisibleBias(int i, double b) {
-    visibleBias[i] = b;
+    visibleBias[i] = getPrecision() == Precision.FLOAT ? (float) b : b;
   }
 
   public double getHiddenBias(int j) {
     return hiddenBias[j];
   }
 
+  /**
+   * Sets a hidden bias, rounded like {@link #setVisibleBias(int, double)}.
+   */
   public void setHiddenBias(int j, double b) {
-    hiddenBias[j] = b;
+    hiddenBias[j] = getPrecision() == Precision.FLOAT ? (float) b : b;
   }
 
   public int visibleCount() {
@@ -128,24 +560,127 @@ public class RestrictedBoltzmannMachine implements Cloneable {
     return hiddenBias.length;
   }
 
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * Splits the hidden units into the given number of contiguous column shards. The weights of a
+   * shard are only ever read by the task computing that shard, so for wide hidden layers each
+   * core streams its own slice of the weight matrix: the hidden probabilities of a shard are
+   * computed independently, and the visible probabilities are computed as per-shard partial sums
+   * that are merged. The shards run on the common fork/join pool. With one shard, the default,
+   * everything runs on the calling thread.
+   * 
+   * @param shardCount the number of shards, between one and hiddenCount()
+   */
+  public void setShardCount(int shardCount) {
+    if (shardCount < 1 || shardCount > Math.max(1, hiddenBias.length)) {
+      throw new IllegalArgumentException("Shard count must be between 1 and "
+          + hiddenBias.length + ", was " + shardCount);
+    }
+    this.shardCount = shardCount;
+  }
+
+  public Precision getPrecision() {
+    return weights.precision();
+  }
+
+  /**
+   * Returns the backing weight matrix. Writes go directly to the machine, bypassing the
+   * finiteness check of {@link #setWeight(double, int, int)}.
+   */
+  WeightMatrix weights() {
+    return weights;
+  }
+
+  /**
+   * Returns the compensated sum of all weights.
+   */
+  double weightSum() {
+    return weights.sum();
+  }
+
+  /**
+   * Writes the indices of the active units of a state into indices, and returns their count.
+   */
+  public static int activeIndices(boolean[] state, int[] indices) {
+    int count = 0;
+    for (int i = 0; i < state.length; i++) {
+      if (state[i]) {
+        indices[count++] = i;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Samples binary states into a new array. Loops that sample repeatedly should write into their
+   * own array with {@link #probabilitiesToBoolean(double[], boolean[], FastRandom)}, or list the
+   * active units with {@link #sampleActive(double[], int[], FastRandom)}.
+   */
   public static boolean[] probabilitiesToBoolean(double[] probabilities) {
     boolean[] ret = new boolean[probabilities.length];
+    ThreadLocalRandom random = ThreadLocalRandom.current();
     for (int i = 0; i < probabilities.length; i++) {
-      ret[i] = Math.random() < probabilities[i];
+      ret[i] = random.nextDouble() < probabilities[i];
     }
     return ret;
   }
 
+  /**
+   * Samples binary states from the given probabilities into states.
+   */
+  public static void probabilitiesToBoolean(double[] probabilities, boolean[] states,
+      FastRandom random) {
+    for (int i = 0; i < probabilities.length; i++) {
+      states[i] = random.nextDouble() < probabilities[i];
+    }
+  }
+
+  /**
+   * Samples binary states from the given probabilities, writing ones and zeroes into states.
+   */
+  public static void sample(double[] probabilities, double[] states, int length,
+      FastRandom random) {
+    for (int i = 0; i < length; i++) {
+      states[i] = random.nextDouble() < probabilities[i] ? 1 : 0;
+    }
+  }
+
+  /**
+   * Samples binary states from the given probabilities, writing the indices of the active units
+   * into active.
+   * 
+   * @return the number of active units
+   */
+  public static int sampleActive(double[] probabilities, int[] active, FastRandom random) {
+    int count = 0;
+    for (int i = 0; i < probabilities.length; i++) {
+      if (random.nextDouble() < probabilities[i]) {
+        active[count++] = i;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns an immutable, thread-safe copy of this machine for feature extraction.
+   */
+  public RBMFeatureExtractor snapshot() {
+    return new RBMFeatureExtractor(this);
+  }
+
   public RestrictedBoltzmannMachine clone() {
-    RestrictedBoltzmannMachine ret = new RestrictedBoltzmannMachine(visibleCount(), hiddenCount());
+    RestrictedBoltzmannMachine ret =
+        new RestrictedBoltzmannMachine(visibleCount(), hiddenCount(), getPrecision());
     ret.visibleBias = visibleBias.clone();
     ret.hiddenBias = hiddenBias.clone();
+    ret.weights = weights.copy();
 
-    for (int i = 0; i < weights.length; i++) {
-      ret.weights[i] = weights[i].clone();
-    }
-
-    ret.function = this.function;
+    ret.exactActivation = this.exactActivation;
+    ret.shardCount = this.shardCount;
+    ret.setFunction(this.function);
 
     return ret;
   }
@@ -157,7 +692,7 @@ public class RestrictedBoltzmannMachine implements Cloneable {
     result = prime * result + ((function == null) ? 0 : function.hashCode());
     result = prime * result + Arrays.hashCode(hiddenBias);
     result = prime * result + Arrays.hashCode(visibleBias);
-    result = prime * result + Arrays.deepHashCode(weights);
+    result = prime * result + weights.hashCode();
     return result;
   }
 
@@ -179,7 +714,7 @@ public class RestrictedBoltzmannMachine implements Cloneable {
       return false;
     if (!Arrays.equals(visibleBias, other.visibleBias))
       return false;
-    if (!Arrays.deepEquals(weights, other.weights))
+    if (!weights.equals(other.weights))
       return false;
     return true;
   }
@@ -0,0 +1,129 @@
+package com.haem.ml.rbm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.LongFunction;
+
+/**
+ * A training set that is streamed rather than held in memory. Every pass visits the same vectors
+ * in the same order, so a vector is identified by its index in a pass; {@link RBMTrainer} uses
+ * the indices to hold out test and validation vectors without copying or modifying the data.
+ *
+ * @author heikki
+ *
+ */
+public interface TrainingSource {
+
+  /**
+   * Returns the length of the vectors.
+   */
+  int visibleCount();
+
+  /**
+   * Returns the number of vectors in a pass.
+   */
+  long size();
+
+  /**
+   * A pass over the vectors of a source. A pass may hold resources, such as an open file, until
+   * it is closed, so the caller must close it even when it stops before the last vector.
+   */
+  interface Pass extends Iterator<double[]>, AutoCloseable {
+    /**
+     * Releases the resources of the pass. Closing a pass twice has no effect. A source that fails
+     * to release its resources throws an {@link java.io.UncheckedIOException}.
+     */
+    @Override
+    default void close() {}
+  }
+
+  /**
+   * Starts a new pass over the vectors. The caller may keep the returned vectors, so the source
+   * must not reuse them. A source that fails to read its data throws an
+   * {@link java.io.UncheckedIOException}.
+   */
+  Pass iterator();
+
+  /**
+   * Returns a source over the vectors of a list.
+   */
+  static TrainingSource of(List<double[]> vectors) {
+    if (vectors.isEmpty()) {
+      throw new IllegalArgumentException("The list must not be empty");
+    }
+    int visibleCount = vectors.get(0).length;
+    return new TrainingSource() {
+      @Override
+      public int visibleCount() {
+        return visibleCount;
+      }
+
+      @Override
+      public long size() {
+        return vectors.size();
+      }
+
+      @Override
+      public Pass iterator() {
+        Iterator<double[]> iterator = vectors.iterator();
+        return new Pass() {
+          @Override
+          public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          @Override
+          public double[] next() {
+            return iterator.next();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Returns a source whose vectors are computed on demand. The generator must return the same
+   * vector for the same index on every pass.
+   *
+   * @param size the number of vectors
+   * @param visibleCount the length of the vectors
+   * @param generator computes the vector of an index
+   */
+  static TrainingSource generated(long size, int visibleCount, LongFunction<double[]> generator) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Size must not be negative, was " + size);
+    }
+    return new TrainingSource() {
+      @Override
+      public int visibleCount() {
+        return visibleCount;
+      }
+
+      @Override
+      public long size() {
+        return size;
+      }
+
+      @Override
+      public Pass iterator() {
+        return new Pass() {
+          private long index;
+
+          @Override
+          public boolean hasNext() {
+            return index < size;
+          }
+
+          @Override
+          public double[] next() {
+            if (index >= size) {
+              throw new NoSuchElementException();
+            }
+            return generator.apply(index++);
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,195 @@
+package com.haem.ml.rbm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * A training set stored in a file and streamed from the disk a buffer at a time, so it may be
+ * larger than the heap. All values are little-endian. The file starts with a header
+ *
+ * <pre>
+ * int    magic, "HVEC"
+ * int    visible count
+ * </pre>
+ *
+ * followed by the vectors as rows of doubles.
+ *
+ * @author heikki
+ *
+ */
+public class VectorFile implements TrainingSource {
+  public static final int MAGIC = 0x43455648;
+
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final Path path;
+  private final int visibleCount;
+  private final long size;
+
+  /**
+   * Opens an existing vector file.
+   */
+  public VectorFile(Path path) throws IOException {
+    this.path = path;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header, 0);
+      header.flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+        throw new IOException("Not a vector file");
+      }
+      this.visibleCount = header.getInt();
+      long rowBytes = (long) visibleCount * Double.BYTES;
+      if (visibleCount < 1 || (channel.size() - HEADER_SIZE) % rowBytes != 0) {
+        throw new IOException("Truncated vector file");
+      }
+      this.size = (channel.size() - HEADER_SIZE) / rowBytes;
+    }
+  }
+
+  /**
+   * Writes vectors to a file, replacing any existing file, and returns the file as a source.
+   *
+   * @param path the file
+   * @param visibleCount the length of the vectors
+   * @param vectors the vectors
+   */
+  public static VectorFile write(Path path, int visibleCount, Iterable<double[]> vectors)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, visibleCount
+          * Double.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC).putInt(visibleCount);
+      for (double[] vector : vectors) {
+        if (vector.length != visibleCount) {
+          throw new IllegalArgumentException(
+              "Vector length " + vector.length + " does not match " + visibleCount);
+        }
+        if (buffer.remaining() < visibleCount * Double.BYTES) {
+          buffer.flip();
+          writeFully(channel, buffer);
+          buffer.clear();
+        }
+        for (double x : vector) {
+          buffer.putDouble(x);
+        }
+      }
+      buffer.flip();
+      writeFully(channel, buffer);
+    }
+    return new VectorFile(path);
+  }
+
+  @Override
+  public int visibleCount() {
+    return visibleCount;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Starts a new pass over the file. The file is opened on the first read and closed once the
+   * last vector has been read or the pass is closed.
+   */
+  @Override
+  public Pass iterator() {
+    return new FilePass();
+  }
+
+  /**
+   * A pass over the file, reading as many whole rows as fit in a buffer at a time.
+   */
+  private class FilePass implements Pass {
+    private final int rowBytes = visibleCount * Double.BYTES;
+    private final ByteBuffer buffer = ByteBuffer
+        .allocateDirect(Math.max(BUFFER_SIZE, rowBytes) / rowBytes * rowBytes)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel channel;
+    private long index;
+    private long position = HEADER_SIZE;
+
+    FilePass() {
+      buffer.limit(0);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < size;
+    }
+
+    @Override
+    public double[] next() {
+      if (index >= size) {
+        throw new NoSuchElementException();
+      }
+      try {
+        if (!buffer.hasRemaining()) {
+          fill();
+        }
+        double[] ret = new double[visibleCount];
+        buffer.asDoubleBuffer().get(ret);
+        buffer.position(buffer.position() + rowBytes);
+        if (++index == size) {
+          channel.close();
+        }
+        return ret;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+
+    private void fill() throws IOException {
+      if (channel == null) {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+      }
+      long rows = Math.min(buffer.capacity() / rowBytes, size - index);
+      buffer.clear();
+      buffer.limit((int) rows * rowBytes);
+      readFully(channel, buffer, position);
+      if (buffer.hasRemaining()) {
+        channel.close();
+        throw new IOException("Truncated vector file");
+      }
+      position += buffer.position();
+      buffer.flip();
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        return;
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
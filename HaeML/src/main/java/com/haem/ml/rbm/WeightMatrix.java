@@ -0,0 +1,717 @@
+package com.haem.ml.rbm;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import com.haem.ml.utils.CompensatedSum;
+import com.haem.ml.utils.MatrixKernels;
+import com.haem.ml.utils.PrimitiveArrays;
+
+/**
+ * A visible x hidden matrix stored flat in row-major order in a given {@link Precision}: the
+ * weights of a {@link RestrictedBoltzmannMachine}, and the weight gradients and momentum kept
+ * while training it. Element (i, j) is at index {@code i * columns + j}. Values are read and
+ * written as doubles and rounded to the precision on store, and the products accumulate into
+ * double arrays whatever the precision.
+ *
+ * @author heikki
+ *
+ */
+abstract class WeightMatrix {
+  final int rows;
+  final int columns;
+
+  WeightMatrix(int rows, int columns) {
+    this.rows = rows;
+    this.columns = columns;
+  }
+
+  /**
+   * Returns a zero matrix of the given shape and precision.
+   */
+  static WeightMatrix create(Precision precision, int rows, int columns) {
+    if (precision == Precision.FLOAT) {
+      return new FloatMatrix(rows, columns);
+    }
+    return new DoubleMatrix(rows, columns);
+  }
+
+  /**
+   * Returns a read-only matrix over the values at the position of a buffer, stored in the given
+   * precision and in the byte order of the buffer, and advances the buffer past them. The values
+   * are not copied: the matrix reads them from the buffer, such as a memory-mapped model file,
+   * whenever it is used.
+   */
+  static WeightMatrix wrap(ByteBuffer buffer, Precision precision, int rows, int columns) {
+    ByteBuffer values = buffer.slice().order(buffer.order());
+    values.limit(rows * columns * precision.bytes());
+    buffer.position(buffer.position() + values.limit());
+    if (precision == Precision.FLOAT) {
+      return new FloatBufferMatrix(values.asFloatBuffer(), rows, columns);
+    }
+    return new DoubleBufferMatrix(values.asDoubleBuffer(), rows, columns);
+  }
+
+  abstract Precision precision();
+
+  int size() {
+    return rows * columns;
+  }
+
+  abstract double get(int index);
+
+  /**
+   * Stores a value, rounded to the precision of the matrix.
+   */
+  abstract void set(int index, double value);
+
+  abstract void clear();
+
+  /**
+   * Adds another matrix of the same shape and precision into this one.
+   */
+  abstract void add(WeightMatrix other);
+
+  abstract WeightMatrix copy();
+
+  /**
+   * Returns the compensated sum of all elements.
+   */
+  abstract double sum();
+
+  /**
+   * Returns the elements as a new double array.
+   */
+  abstract double[] toDoubles();
+
+  /**
+   * Replaces the elements with the given values, rounding them to the precision of the matrix.
+   */
+  abstract void load(double[] values);
+
+  /**
+   * Replaces the elements with values read from a buffer, stored in the precision of the matrix
+   * and in the byte order of the buffer.
+   */
+  abstract void read(ByteBuffer buffer);
+
+  /**
+   * Puts as many elements from start on as fit into a buffer, in the precision of the matrix and
+   * the byte order of the buffer, and returns their count.
+   */
+  abstract int write(ByteBuffer buffer, int start);
+
+  /**
+   * Computes y += the sum of the given rows, see {@link MatrixKernels#addRows}.
+   */
+  abstract void addRows(int[] rowIndices, int count, double[] y);
+
+  /**
+   * Computes y += the sum of the given columns, see {@link MatrixKernels#addColumns}.
+   */
+  abstract void addColumns(int[] columnIndices, int count, double[] y, int yOffset);
+
+  /**
+   * Computes y += x*A for the columns [columnStart, columnEnd), see
+   * {@link MatrixKernels#addVectorMatrix}.
+   */
+  abstract void addVectorMatrix(double[] x, double[] y, int columnStart, int columnEnd);
+
+  /**
+   * Computes the part of y += A*x contributed by the columns [columnStart, columnEnd), see
+   * {@link MatrixKernels#addMatrixVector}.
+   */
+  abstract void addMatrixVector(double[] x, double[] y, int columnStart, int columnEnd);
+
+  /**
+   * Computes C += X*A for the m x rows matrix X and the columns [columnStart, columnEnd), see
+   * {@link MatrixKernels#multiply}.
+   */
+  abstract void multiply(double[] x, double[] c, int m, int columnStart, int columnEnd);
+
+  /**
+   * Computes the part of C += X*A^T contributed by the columns [columnStart, columnEnd), for the
+   * m x columns matrix X, see {@link MatrixKernels#multiplyTransposeRight}.
+   */
+  abstract void multiplyTransposeRight(double[] x, double[] c, int m, int columnStart,
+      int columnEnd);
+
+  /**
+   * Computes A += alpha*X^T*Y for the columns [columnStart, columnEnd), where X is k x rows and
+   * Y is k x columns, see {@link MatrixKernels#addTransposeLeftProduct}.
+   */
+  abstract void addTransposeLeftProduct(double[] x, double[] y, int k, double alpha,
+      int columnStart, int columnEnd);
+
+  private static final class DoubleMatrix extends WeightMatrix {
+    private final double[] values;
+
+    DoubleMatrix(int rows, int columns) {
+      super(rows, columns);
+      this.values = new double[rows * columns];
+    }
+
+    @Override
+    Precision precision() {
+      return Precision.DOUBLE;
+    }
+
+    @Override
+    double get(int index) {
+      return values[index];
+    }
+
+    @Override
+    void set(int index, double value) {
+      values[index] = value;
+    }
+
+    @Override
+    void clear() {
+      Arrays.fill(values, 0);
+    }
+
+    @Override
+    void add(WeightMatrix other) {
+      double[] from = ((DoubleMatrix) other).values;
+      for (int i = 0; i < values.length; i++) {
+        values[i] += from[i];
+      }
+    }
+
+    @Override
+    WeightMatrix copy() {
+      DoubleMatrix ret = new DoubleMatrix(rows, columns);
+      System.arraycopy(values, 0, ret.values, 0, values.length);
+      return ret;
+    }
+
+    @Override
+    double sum() {
+      return MatrixKernels.sum(values);
+    }
+
+    @Override
+    double[] toDoubles() {
+      return values.clone();
+    }
+
+    @Override
+    void load(double[] from) {
+      System.arraycopy(from, 0, values, 0, values.length);
+    }
+
+    @Override
+    void read(ByteBuffer buffer) {
+      DoubleBuffer view = buffer.asDoubleBuffer();
+      view.get(values);
+      buffer.position(buffer.position() + values.length * Double.BYTES);
+    }
+
+    @Override
+    int write(ByteBuffer buffer, int start) {
+      DoubleBuffer view = buffer.asDoubleBuffer();
+      int count = Math.min(view.remaining(), values.length - start);
+      view.put(values, start, count);
+      buffer.position(buffer.position() + count * Double.BYTES);
+      return count;
+    }
+
+    @Override
+    void addRows(int[] rowIndices, int count, double[] y) {
+      MatrixKernels.addRows(rowIndices, count, values, y, columns);
+    }
+
+    @Override
+    void addColumns(int[] columnIndices, int count, double[] y, int yOffset) {
+      MatrixKernels.addColumns(values, columnIndices, count, y, yOffset, rows, columns);
+    }
+
+    @Override
+    void addVectorMatrix(double[] x, double[] y, int columnStart, int columnEnd) {
+      MatrixKernels.addVectorMatrix(x, values, y, rows, columns, columnStart, columnEnd);
+    }
+
+    @Override
+    void addMatrixVector(double[] x, double[] y, int columnStart, int columnEnd) {
+      MatrixKernels.addMatrixVector(values, x, y, rows, columns, columnStart, columnEnd);
+    }
+
+    @Override
+    void multiply(double[] x, double[] c, int m, int columnStart, int columnEnd) {
+      MatrixKernels.multiply(x, values, c, m, rows, columns, columnStart, columnEnd);
+    }
+
+    @Override
+    void multiplyTransposeRight(double[] x, double[] c, int m, int columnStart, int columnEnd) {
+      MatrixKernels.multiplyTransposeRight(x, values, c, m, columns, rows, columnStart,
+          columnEnd);
+    }
+
+    @Override
+    void addTransposeLeftProduct(double[] x, double[] y, int k, double alpha, int columnStart,
+        int columnEnd) {
+      MatrixKernels.addTransposeLeftProduct(x, y, values, k, rows, columns, alpha, columnStart,
+          columnEnd);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(values);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof DoubleMatrix && Arrays.equals(values, ((DoubleMatrix) obj).values);
+    }
+  }
+
+  /**
+   * Single precision storage. The kernels follow the blocking of the double kernels of
+   * {@link MatrixKernels}, widening each element to double as it is read.
+   */
+  private static final class FloatMatrix extends WeightMatrix {
+    private final float[] values;
+
+    FloatMatrix(int rows, int columns) {
+      super(rows, columns);
+      this.values = new float[rows * columns];
+    }
+
+    @Override
+    Precision precision() {
+      return Precision.FLOAT;
+    }
+
+    @Override
+    double get(int index) {
+      return values[index];
+    }
+
+    @Override
+    void set(int index, double value) {
+      values[index] = (float) value;
+    }
+
+    @Override
+    void clear() {
+      Arrays.fill(values, 0);
+    }
+
+    @Override
+    void add(WeightMatrix other) {
+      float[] from = ((FloatMatrix) other).values;
+      for (int i = 0; i < values.length; i++) {
+        values[i] += from[i];
+      }
+    }
+
+    @Override
+    WeightMatrix copy() {
+      FloatMatrix ret = new FloatMatrix(rows, columns);
+      System.arraycopy(values, 0, ret.values, 0, values.length);
+      return ret;
+    }
+
+    @Override
+    double sum() {
+      CompensatedSum sum = new CompensatedSum();
+      for (int i = 0; i < values.length; i++) {
+        sum.add(values[i]);
+      }
+      return sum.value();
+    }
+
+    @Override
+    double[] toDoubles() {
+      return PrimitiveArrays.toDouble(values);
+    }
+
+    @Override
+    void load(double[] from) {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = (float) from[i];
+      }
+    }
+
+    @Override
+    void read(ByteBuffer buffer) {
+      FloatBuffer view = buffer.asFloatBuffer();
+      view.get(values);
+      buffer.position(buffer.position() + values.length * Float.BYTES);
+    }
+
+    @Override
+    int write(ByteBuffer buffer, int start) {
+      FloatBuffer view = buffer.asFloatBuffer();
+      int count = Math.min(view.remaining(), values.length - start);
+      view.put(values, start, count);
+      buffer.position(buffer.position() + count * Float.BYTES);
+      return count;
+    }
+
+    @Override
+    void addRows(int[] rowIndices, int count, double[] y) {
+      for (int j0 = 0; j0 < columns; j0 += MatrixKernels.COLUMN_BLOCK) {
+        int j1 = Math.min(columns, j0 + MatrixKernels.COLUMN_BLOCK);
+        for (int r = 0; r < count; r++) {
+          int row = rowIndices[r] * columns;
+          for (int j = j0; j < j1; j++) {
+            y[j] += values[row + j];
+          }
+        }
+      }
+    }
+
+    @Override
+    void addColumns(int[] columnIndices, int count, double[] y, int yOffset) {
+      for (int i = 0; i < rows; i++) {
+        int row = i * columns;
+        double sum = 0;
+        for (int c = 0; c < count; c++) {
+          sum += values[row + columnIndices[c]];
+        }
+        y[yOffset + i] += sum;
+      }
+    }
+
+    @Override
+    void addVectorMatrix(double[] x, double[] y, int columnStart, int columnEnd) {
+      for (int j0 = columnStart; j0 < columnEnd; j0 += MatrixKernels.COLUMN_BLOCK) {
+        int j1 = Math.min(columnEnd, j0 + MatrixKernels.COLUMN_BLOCK);
+        for (int i = 0; i < rows; i++) {
+          double xi = x[i];
+          if (xi == 0) {
+            continue;
+          }
+          int row = i * columns;
+          for (int j = j0; j < j1; j++) {
+            y[j] += xi * values[row + j];
+          }
+        }
+      }
+    }
+
+    @Override
+    void addMatrixVector(double[] x, double[] y, int columnStart, int columnEnd) {
+      for (int i = 0; i < rows; i++) {
+        y[i] += dot(i * columns, x, 0, columnStart, columnEnd);
+      }
+    }
+
+    @Override
+    void multiply(double[] x, double[] c, int m, int columnStart, int columnEnd) {
+      for (int j0 = columnStart; j0 < columnEnd; j0 += MatrixKernels.COLUMN_BLOCK) {
+        int j1 = Math.min(columnEnd, j0 + MatrixKernels.COLUMN_BLOCK);
+        for (int p0 = 0; p0 < rows; p0 += MatrixKernels.DEPTH_BLOCK) {
+          int p1 = Math.min(rows, p0 + MatrixKernels.DEPTH_BLOCK);
+          for (int i = 0; i < m; i++) {
+            int xRow = i * rows;
+            int cRow = i * columns;
+            for (int p = p0; p < p1; p++) {
+              double xip = x[xRow + p];
+              if (xip == 0) {
+                continue;
+              }
+              int row = p * columns;
+              for (int j = j0; j < j1; j++) {
+                c[cRow + j] += xip * values[row + j];
+              }
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    void multiplyTransposeRight(double[] x, double[] c, int m, int columnStart, int columnEnd) {
+      for (int j0 = 0; j0 < rows; j0 += MatrixKernels.ROW_BLOCK) {
+        int j1 = Math.min(rows, j0 + MatrixKernels.ROW_BLOCK);
+        for (int i = 0; i < m; i++) {
+          for (int j = j0; j < j1; j++) {
+            c[i * rows + j] += dot(j * columns, x, i * columns, columnStart, columnEnd);
+          }
+        }
+      }
+    }
+
+    @Override
+    void addTransposeLeftProduct(double[] x, double[] y, int k, double alpha, int columnStart,
+        int columnEnd) {
+      for (int j0 = columnStart; j0 < columnEnd; j0 += MatrixKernels.COLUMN_BLOCK) {
+        int j1 = Math.min(columnEnd, j0 + MatrixKernels.COLUMN_BLOCK);
+        for (int i = 0; i < rows; i++) {
+          int row = i * columns;
+          for (int p = 0; p < k; p++) {
+            double api = alpha * x[p * rows + i];
+            if (api == 0) {
+              continue;
+            }
+            int yRow = p * columns;
+            for (int j = j0; j < j1; j++) {
+              values[row + j] += api * y[yRow + j];
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the dot product of the elements [start, end) of the row at rowOffset and of the
+     * vector at xOffset in x.
+     */
+    private double dot(int rowOffset, double[] x, int xOffset, int start, int end) {
+      double ret = 0;
+      for (int p = start; p < end; p++) {
+        ret += values[rowOffset + p] * x[xOffset + p];
+      }
+      return ret;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(values);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof FloatMatrix && Arrays.equals(values, ((FloatMatrix) obj).values);
+    }
+  }
+
+  /**
+   * Read-only storage in a buffer, see {@link #wrap(ByteBuffer, Precision, int, int)}. The
+   * kernels follow the blocking of the heap kernels and read each element from the buffer as
+   * they go, so the values are never copied to the heap. The methods that would modify the matrix
+   * throw UnsupportedOperationException.
+   */
+  private abstract static class BufferMatrix extends WeightMatrix {
+    BufferMatrix(int rows, int columns) {
+      super(rows, columns);
+    }
+
+    @Override
+    void set(int index, double value) {
+      throw readOnly();
+    }
+
+    @Override
+    void clear() {
+      throw readOnly();
+    }
+
+    @Override
+    void add(WeightMatrix other) {
+      throw readOnly();
+    }
+
+    @Override
+    void load(double[] values) {
+      throw readOnly();
+    }
+
+    @Override
+    void read(ByteBuffer buffer) {
+      throw readOnly();
+    }
+
+    @Override
+    void addTransposeLeftProduct(double[] x, double[] y, int k, double alpha, int columnStart,
+        int columnEnd) {
+      throw readOnly();
+    }
+
+    private static UnsupportedOperationException readOnly() {
+      return new UnsupportedOperationException("The matrix is read-only");
+    }
+
+    /**
+     * Returns a heap matrix of the same precision with the same values.
+     */
+    @Override
+    WeightMatrix copy() {
+      WeightMatrix ret = create(precision(), rows, columns);
+      ret.load(toDoubles());
+      return ret;
+    }
+
+    @Override
+    double sum() {
+      CompensatedSum sum = new CompensatedSum();
+      for (int i = 0; i < size(); i++) {
+        sum.add(get(i));
+      }
+      return sum.value();
+    }
+
+    @Override
+    double[] toDoubles() {
+      double[] ret = new double[size()];
+      for (int i = 0; i < ret.length; i++) {
+        ret[i] = get(i);
+      }
+      return ret;
+    }
+
+    @Override
+    void addRows(int[] rowIndices, int count, double[] y) {
+      for (int j0 = 0; j0 < columns; j0 += MatrixKernels.COLUMN_BLOCK) {
+        int j1 = Math.min(columns, j0 + MatrixKernels.COLUMN_BLOCK);
+        for (int r = 0; r < count; r++) {
+          int row = rowIndices[r] * columns;
+          for (int j = j0; j < j1; j++) {
+            y[j] += get(row + j);
+          }
+        }
+      }
+    }
+
+    @Override
+    void addColumns(int[] columnIndices, int count, double[] y, int yOffset) {
+      for (int i = 0; i < rows; i++) {
+        int row = i * columns;
+        double sum = 0;
+        for (int c = 0; c < count; c++) {
+          sum += get(row + columnIndices[c]);
+        }
+        y[yOffset + i] += sum;
+      }
+    }
+
+    @Override
+    void addVectorMatrix(double[] x, double[] y, int columnStart, int columnEnd) {
+      for (int j0 = columnStart; j0 < columnEnd; j0 += MatrixKernels.COLUMN_BLOCK) {
+        int j1 = Math.min(columnEnd, j0 + MatrixKernels.COLUMN_BLOCK);
+        for (int i = 0; i < rows; i++) {
+          double xi = x[i];
+          if (xi == 0) {
+            continue;
+          }
+          int row = i * columns;
+          for (int j = j0; j < j1; j++) {
+            y[j] += xi * get(row + j);
+          }
+        }
+      }
+    }
+
+    @Override
+    void addMatrixVector(double[] x, double[] y, int columnStart, int columnEnd) {
+      for (int i = 0; i < rows; i++) {
+        y[i] += dot(i * columns, x, 0, columnStart, columnEnd);
+      }
+    }
+
+    @Override
+    void multiply(double[] x, double[] c, int m, int columnStart, int columnEnd) {
+      for (int j0 = columnStart; j0 < columnEnd; j0 += MatrixKernels.COLUMN_BLOCK) {
+        int j1 = Math.min(columnEnd, j0 + MatrixKernels.COLUMN_BLOCK);
+        for (int p0 = 0; p0 < rows; p0 += MatrixKernels.DEPTH_BLOCK) {
+          int p1 = Math.min(rows, p0 + MatrixKernels.DEPTH_BLOCK);
+          for (int i = 0; i < m; i++) {
+            int xRow = i * rows;
+            int cRow = i * columns;
+            for (int p = p0; p < p1; p++) {
+              double xip = x[xRow + p];
+              if (xip == 0) {
+                continue;
+              }
+              int row = p * columns;
+              for (int j = j0; j < j1; j++) {
+                c[cRow + j] += xip * get(row + j);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    void multiplyTransposeRight(double[] x, double[] c, int m, int columnStart, int columnEnd) {
+      for (int j0 = 0; j0 < rows; j0 += MatrixKernels.ROW_BLOCK) {
+        int j1 = Math.min(rows, j0 + MatrixKernels.ROW_BLOCK);
+        for (int i = 0; i < m; i++) {
+          for (int j = j0; j < j1; j++) {
+            c[i * rows + j] += dot(j * columns, x, i * columns, columnStart, columnEnd);
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the dot product of the elements [start, end) of the row at rowOffset and of the
+     * vector at xOffset in x.
+     */
+    private double dot(int rowOffset, double[] x, int xOffset, int start, int end) {
+      double ret = 0;
+      for (int p = start; p < end; p++) {
+        ret += get(rowOffset + p) * x[xOffset + p];
+      }
+      return ret;
+    }
+  }
+
+  private static final class DoubleBufferMatrix extends BufferMatrix {
+    private final DoubleBuffer values;
+
+    DoubleBufferMatrix(DoubleBuffer values, int rows, int columns) {
+      super(rows, columns);
+      this.values = values;
+    }
+
+    @Override
+    Precision precision() {
+      return Precision.DOUBLE;
+    }
+
+    @Override
+    double get(int index) {
+      return values.get(index);
+    }
+
+    @Override
+    int write(ByteBuffer buffer, int start) {
+      DoubleBuffer view = buffer.asDoubleBuffer();
+      int count = Math.min(view.remaining(), size() - start);
+      DoubleBuffer from = values.duplicate();
+      from.limit(start + count);
+      from.position(start);
+      view.put(from);
+      buffer.position(buffer.position() + count * Double.BYTES);
+      return count;
+    }
+  }
+
+  private static final class FloatBufferMatrix extends BufferMatrix {
+    private final FloatBuffer values;
+
+    FloatBufferMatrix(FloatBuffer values, int rows, int columns) {
+      super(rows, columns);
+      this.values = values;
+    }
+
+    @Override
+    Precision precision() {
+      return Precision.FLOAT;
+    }
+
+    @Override
+    double get(int index) {
+      return values.get(index);
+    }
+
+    @Override
+    int write(ByteBuffer buffer, int start) {
+      FloatBuffer view = buffer.asFloatBuffer();
+      int count = Math.min(view.remaining(), size() - start);
+      FloatBuffer from = values.duplicate();
+      from.limit(start + count);
+      from.position(start);
+      view.put(from);
+      buffer.position(buffer.position() + count * Float.BYTES);
+      return count;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.haem.ml.rbm;
+
+import com.haem.ml.utils.FastRandom;
+
+/**
+ * Scratch buffers for running Gibbs chains on one thread, so that the chains do not allocate.
+ * The single vector buffers are sized for one visible or hidden layer; the batch buffers grow to
+ * the largest minibatch seen and are then reused.
+ * 
+ * @author heikki
+ *
+ */
+class Workspace {
+  final FastRandom random;
+  final Gradient gradient;
+
+  final double[] visible;
+  final double[] hidden;
+  final double[] hiddenOutput;
+  final double[] hiddenMean;
+  final int[] activeVisible;
+  final int[] activeHidden;
+
+  double[] input;
+  double[] visibleState;
+  double[] hiddenProbabilities;
+  double[] hiddenState;
+  double[] rVisible;
+  double[] rHidden;
+
+  private final int visibleCount;
+  private final int hiddenCount;
+  private int batchCapacity;
+
+  Workspace(int visibleCount, int hiddenCount, Precision precision, FastRandom random) {
+    this.visibleCount = visibleCount;
+    this.hiddenCount = hiddenCount;
+    this.random = random;
+    this.gradient = new Gradient(visibleCount, hiddenCount, precision);
+    this.visible = new double[visibleCount];
+    this.hidden = new double[hiddenCount];
+    this.hiddenOutput = new double[hiddenCount];
+    this.hiddenMean = new double[hiddenCount];
+    this.activeVisible = new int[visibleCount];
+    this.activeHidden = new int[hiddenCount];
+  }
+
+  /**
+   * Makes sure the batch buffers can hold a minibatch of the given size.
+   */
+  void ensureBatchCapacity(int batchSize) {
+    if (batchSize <= batchCapacity) {
+      return;
+    }
+    batchCapacity = batchSize;
+    input = new double[batchSize * visibleCount];
+    visibleState = new double[batchSize * visibleCount];
+    hiddenProbabilities = new double[batchSize * hiddenCount];
+    hiddenState = new double[batchSize * hiddenCount];
+    rVisible = new double[batchSize * visibleCount];
+    rHidden = new double[batchSize * hiddenCount];
+  }
+}
@@ -15,6 +15,13 @@ public class BaseLearningCoefficients implements SOMTrainer.LearningCoefficients
   private double eLife;
   private double radius;
   private SelfOrganizingMap map;
+  private NeighborhoodTable table;
+  private int tableIteration;
+  /**
+   * Whether a subclass computes theta itself, in which case the tables, built from
+   * {@link #kernel(double)}, would not match it.
+   */
+  private final boolean customTheta = overridesTheta(getClass());
 
   /**
    * Builds the coefficients
@@ -40,17 +47,66 @@ public class BaseLearningCoefficients implements SOMTrainer.LearningCoefficients
     double[] vCoordinates = map.indexToCoordinates(v);
     double[] uCoordinates = map.indexToCoordinates(u);
 
-    double distance = Measure.euclideanDistance(vCoordinates, uCoordinates);
+    return kernel(Measure.euclideanDistance(vCoordinates, uCoordinates));
+  }
 
+  /**
+   * Returns the neighborhood function of the grid distance between two neurons.
+   */
+  protected double kernel(double distance) {
     return distance <= radius ? 1 : 0;
   }
 
+  /**
+   * Returns the grid distance beyond which the neighborhood function is zero, or small enough to
+   * be ignored.
+   */
+  protected double supportRadius() {
+    return radius;
+  }
+
+  /**
+   * Returns the neighborhood table of an iteration. The table of the latest iteration is cached,
+   * so the trainer builds it once per epoch. Returns null if a subclass overrides
+   * {@link #theta(int, int, int)}, so that the trainer evaluates the override for every neuron.
+   */
+  @Override
+  public NeighborhoodTable neighborhood(int iteration) {
+    if (customTheta) {
+      return null;
+    }
+    NeighborhoodTable ret = table;
+    if (ret == null || tableIteration != iteration) {
+      ret = NeighborhoodTable.build(map, supportRadius(), alpha(iteration), this::kernel);
+      table = ret;
+      tableIteration = iteration;
+    }
+    return ret;
+  }
+
+  private static boolean overridesTheta(Class<?> type) {
+    try {
+      return type.getMethod("theta", int.class, int.class, int.class)
+          .getDeclaringClass() != BaseLearningCoefficients.class;
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Discards the cached neighborhood table, after a change of the parameters.
+   */
+  protected void invalidateTable() {
+    table = null;
+  }
+
   public double geteLife() {
     return eLife;
   }
 
   public void seteLife(double eLife) {
     this.eLife = eLife;
+    invalidateTable();
   }
 
   public double getRadius() {
@@ -59,6 +115,7 @@ public class BaseLearningCoefficients implements SOMTrainer.LearningCoefficients
 
   public void setRadius(double radius) {
     this.radius = radius;
+    invalidateTable();
   }
 
   public SelfOrganizingMap getMap() {
@@ -67,6 +124,7 @@ public class BaseLearningCoefficients implements SOMTrainer.LearningCoefficients
 
   public void setMap(SelfOrganizingMap map) {
     this.map = map;
+    invalidateTable();
   }
 
 }
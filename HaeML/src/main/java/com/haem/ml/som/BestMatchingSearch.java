@@ -0,0 +1,152 @@
+package com.haem.ml.som;
+
+import java.util.stream.IntStream;
+
+import com.haem.ml.utils.MatrixKernels;
+
+/**
+ * Finds best matching neurons by squared Euclidean distance with partial-distance elimination: a
+ * neuron is abandoned as soon as its running sum reaches the best distance found so far. The
+ * dimensions are summed in order of decreasing variance over the codebook, so that the sums grow
+ * fast and most neurons are abandoned after a few dimensions. The search reads the weight vectors
+ * of the map directly, and must be rebuilt when they change. Batches of inputs are searched with
+ * matrix products instead, see {@link #bestMatchingIndices(double[][], int[])}.
+ * 
+ * @author heikki
+ *
+ */
+final class BestMatchingSearch {
+  /**
+   * Number of dimensions summed between checks against the best distance.
+   */
+  private static final int CHECK_INTERVAL = 8;
+
+  /**
+   * Number of inputs searched together as one matrix product by
+   * {@link #bestMatchingIndices(double[][], int[])}; blocks are searched in parallel.
+   */
+  static final int BLOCK_SIZE = 64;
+
+  private final int neuronCount;
+  private final int dimension;
+  private final double[][] weights;
+  /**
+   * The dimensions in the order they are summed.
+   */
+  private final int[] order;
+  /**
+   * The weight vectors as one flat neuronCount x dimension matrix for the batch search, copied
+   * on its first use, so that maps only searched one input at a time are not stored twice.
+   */
+  private volatile double[] codebook;
+  /**
+   * The squared norms of the weight vectors.
+   */
+  private final double[] norms;
+
+  BestMatchingSearch(double[][] weights) {
+    this.neuronCount = weights.length;
+    this.dimension = neuronCount == 0 ? 0 : weights[0].length;
+    this.weights = weights;
+    double[] mean = new double[dimension];
+    double[] variance = new double[dimension];
+    for (double[] w : weights) {
+      for (int d = 0; d < dimension; d++) {
+        mean[d] += w[d] / neuronCount;
+      }
+    }
+    for (double[] w : weights) {
+      for (int d = 0; d < dimension; d++) {
+        double diff = w[d] - mean[d];
+        variance[d] += diff * diff;
+      }
+    }
+    this.order = IntStream.range(0, dimension).boxed()
+        .sorted((a, b) -> Double.compare(variance[b], variance[a])).mapToInt(Integer::intValue)
+        .toArray();
+    this.norms = new double[neuronCount];
+    for (int n = 0; n < neuronCount; n++) {
+      norms[n] = MatrixKernels.dot(weights[n], 0, weights[n], 0, dimension);
+    }
+  }
+
+  /**
+   * Returns the index of the neuron nearest to the input, the first one on ties.
+   */
+  int bestMatchingIndex(double[] input) {
+    int best = 0;
+    double bestDistance = Double.POSITIVE_INFINITY;
+    for (int n = 0; n < neuronCount; n++) {
+      double[] w = weights[n];
+      double sum = 0;
+      int d = 0;
+      while (d < dimension) {
+        int end = Math.min(dimension, d + CHECK_INTERVAL);
+        for (; d < end; d++) {
+          int k = order[d];
+          double diff = input[k] - w[k];
+          sum += diff * diff;
+        }
+        if (sum >= bestDistance) {
+          break;
+        }
+      }
+      if (sum < bestDistance) {
+        bestDistance = sum;
+        best = n;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Finds the best matching neurons of a batch of inputs. The squared distance |x - w|^2 is
+   * |x|^2 - 2 x.w + |w|^2, and |x|^2 is the same for every neuron, so the nearest neuron
+   * minimizes |w|^2 - 2 x.w. The dot products of a block of BLOCK_SIZE inputs with every neuron
+   * are one cache-blocked matrix product, and the blocks run in parallel on the common fork/join
+   * pool. Each block allocates its own input and product buffers, which costs little next to the
+   * product, and leaves nothing behind on the pool threads once the search is discarded. Neurons
+   * at almost the same distance may be ordered differently from
+   * {@link #bestMatchingIndex(double[])}, since the expanded form rounds differently.
+   */
+  void bestMatchingIndices(double[][] batch, int[] out) {
+    int blocks = (batch.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    IntStream.range(0, blocks).parallel().forEach(block -> searchBlock(batch, out, block));
+  }
+
+  private double[] codebook() {
+    double[] ret = codebook;
+    if (ret == null) {
+      ret = new double[neuronCount * dimension];
+      for (int n = 0; n < neuronCount; n++) {
+        System.arraycopy(weights[n], 0, ret, n * dimension, dimension);
+      }
+      codebook = ret;
+    }
+    return ret;
+  }
+
+  private void searchBlock(double[][] batch, int[] out, int block) {
+    int start = block * BLOCK_SIZE;
+    int rows = Math.min(BLOCK_SIZE, batch.length - start);
+    double[] packed = new double[rows * dimension];
+    for (int r = 0; r < rows; r++) {
+      System.arraycopy(batch[start + r], 0, packed, r * dimension, dimension);
+    }
+    double[] dots = new double[rows * neuronCount];
+    MatrixKernels.multiplyTransposeRight(packed, codebook(), dots, rows, dimension, neuronCount);
+    for (int r = 0; r < rows; r++) {
+      int offset = r * neuronCount;
+      int best = 0;
+      double bestDistance = Double.POSITIVE_INFINITY;
+      for (int n = 0; n < neuronCount; n++) {
+        double distance = norms[n] - 2 * dots[offset + n];
+        if (distance < bestDistance) {
+          bestDistance = distance;
+          best = n;
+        }
+      }
+      out[start + r] = best;
+    }
+  }
+}
@@ -1,20 +1,48 @@
 package com.haem.ml.som;
 
-import com.haem.ml.utils.Measure;
-
 public class GaussianLearningCoefficients extends BaseLearningCoefficients {
+  /**
+   * The default smallest neighborhood function value a neighborhood table includes. The neurons
+   * below it are not updated, so training differs slightly from evaluating theta for every neuron;
+   * a smaller cutoff, see {@link #setCutoff(double)}, brings it closer.
+   */
+  public static final double DEFAULT_CUTOFF = 1e-3;
+
+  private double cutoff = DEFAULT_CUTOFF;
 
   public GaussianLearningCoefficients(SelfOrganizingMap map, double eLife, double radius) {
     super(map, eLife, radius);
   }
 
   @Override
-  public double theta(int v, int u, int iteration) {
-    double[] vCoordinates = getMap().indexToCoordinates(v);
-    double[] uCoordinates = getMap().indexToCoordinates(u);
+  protected double kernel(double distance) {
+    double scaled = distance / getRadius();
+    return Math.exp(-scaled * scaled);
+  }
 
-    double distance = Measure.euclideanDistance(vCoordinates, uCoordinates) / getRadius();
+  /**
+   * Truncates the Gaussian where it falls below the cutoff, at radius * sqrt(-ln(cutoff)).
+   */
+  @Override
+  protected double supportRadius() {
+    return getRadius() * Math.sqrt(-Math.log(cutoff));
+  }
+
+  public double getCutoff() {
+    return cutoff;
+  }
 
-    return Math.exp(-distance * distance);
+  /**
+   * Sets the smallest neighborhood function value that neighborhood tables include; neurons
+   * further away are not updated when training with a table.
+   * 
+   * @param cutoff the cutoff, between zero and one
+   */
+  public void setCutoff(double cutoff) {
+    if (!(cutoff > 0 && cutoff < 1)) {
+      throw new IllegalArgumentException("Cutoff must be between 0 and 1, was " + cutoff);
+    }
+    this.cutoff = cutoff;
+    invalidateTable();
   }
 }
@@ -0,0 +1,117 @@
+package com.haem.ml.som;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The neighborhood of a best matching neuron, precomputed for one iteration: the grid offsets of
+ * every neuron within the support of the neighborhood function, with the learning rate times the
+ * neighborhood function at that offset. Training with a table visits only the neurons in the
+ * support, rather than evaluating the neighborhood function for every neuron of the map.
+ * 
+ * @author heikki
+ *
+ */
+public final class NeighborhoodTable {
+  private final int[] gridSizes;
+  private final int[] gridFactors;
+  /**
+   * The offsets, size() x dimensions, row-major.
+   */
+  private final int[] offsets;
+  private final double[] weights;
+  private final int size;
+
+  NeighborhoodTable(int[] gridSizes, int[] gridFactors, int[] offsets, double[] weights,
+      int size) {
+    this.gridSizes = gridSizes;
+    this.gridFactors = gridFactors;
+    this.offsets = offsets;
+    this.weights = weights;
+    this.size = size;
+  }
+
+  /**
+   * Tabulates a neighborhood function. Every offset whose length is at most supportRadius, and at
+   * which the kernel is not zero, is included.
+   * 
+   * @param map the map the table is for
+   * @param supportRadius the grid distance beyond which the kernel is treated as zero
+   * @param alpha the learning rate the kernel is multiplied with
+   * @param kernel the neighborhood function of the grid distance
+   */
+  static NeighborhoodTable build(SelfOrganizingMap map, double supportRadius, double alpha,
+      DoubleUnaryOperator kernel) {
+    int[] gridSizes = map.gridSizes();
+    int dimensions = gridSizes.length;
+    int[] reach = new int[dimensions];
+    int candidates = 1;
+    for (int d = 0; d < dimensions; d++) {
+      reach[d] = (int) Math.min(gridSizes[d] - 1, Math.floor(supportRadius));
+      candidates *= 2 * reach[d] + 1;
+    }
+    int[] offsets = new int[candidates * dimensions];
+    double[] weights = new double[candidates];
+    int size = 0;
+    int[] offset = new int[dimensions];
+    for (int c = 0; c < candidates; c++) {
+      int rest = c;
+      double squaredLength = 0;
+      for (int d = dimensions - 1; d >= 0; d--) {
+        int width = 2 * reach[d] + 1;
+        offset[d] = rest % width - reach[d];
+        rest /= width;
+        squaredLength += offset[d] * offset[d];
+      }
+      double distance = Math.sqrt(squaredLength);
+      if (distance > supportRadius) {
+        continue;
+      }
+      double weight = alpha * kernel.applyAsDouble(distance);
+      if (weight == 0) {
+        continue;
+      }
+      System.arraycopy(offset, 0, offsets, size * dimensions, dimensions);
+      weights[size++] = weight;
+    }
+    return new NeighborhoodTable(gridSizes, map.gridFactors(), offsets, weights, size);
+  }
+
+  /**
+   * Returns the number of offsets, the largest number of neighbors a neuron can have.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the neighbors of a neuron that are on the map.
+   * 
+   * @param u the index of the best matching neuron
+   * @param coordinates scratch space for the coordinates of u, one per grid dimension
+   * @param indices receives the indices of the neighbors, at least size() long
+   * @param out receives the learning rate times the neighborhood function of each neighbor
+   * @return the number of neighbors
+   */
+  public int neighbors(int u, int[] coordinates, int[] indices, double[] out) {
+    int dimensions = gridSizes.length;
+    int rest = u;
+    for (int d = 0; d < dimensions; d++) {
+      coordinates[d] = rest / gridFactors[d];
+      rest -= coordinates[d] * gridFactors[d];
+    }
+    int count = 0;
+    neighbor: for (int k = 0; k < size; k++) {
+      int index = 0;
+      for (int d = 0; d < dimensions; d++) {
+        int c = coordinates[d] + offsets[k * dimensions + d];
+        if (c < 0 || c >= gridSizes[d]) {
+          continue neighbor;
+        }
+        index += c * gridFactors[d];
+      }
+      indices[count] = index;
+      out[count++] = weights[k];
+    }
+    return count;
+  }
+}
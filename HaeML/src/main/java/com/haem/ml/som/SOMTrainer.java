@@ -1,61 +1,120 @@
 package com.haem.ml.som;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.haem.ml.utils.SamplingStrategy;
 import com.haem.ml.utils.Trainer;
 
-public class SOMTrainer implements Trainer {
+public class SOMTrainer implements Trainer, AutoCloseable {
+  private static final int MAX_CHUNK_SIZE = 64;
+  private static final int CHUNKS_PER_THREAD = 4;
+
   public interface LearningCoefficients {
     double alpha(int iteration);
 
     double theta(int v, int u, int iteration);
 
+    /**
+     * Returns the neighborhood of an iteration as a table, with alpha(iteration) folded into its
+     * weights, or null if the coefficients cannot be tabulated, in which case theta is evaluated
+     * for every neuron.
+     */
+    default NeighborhoodTable neighborhood(int iteration) {
+      return null;
+    }
   }
 
-  private class WorkerThread extends Thread {
-    private AtomicInteger counter;
+  /**
+   * Accumulates the weight adjustments of the samples it claims from the shared counter, a chunk
+   * at a time with one atomic increment, taking the chunk from the strategy in one batch. The
+   * workers live as long as the trainer and are run on its pool once per epoch; each keeps its
+   * adjustment buffer between epochs.
+   */
+  private class Worker implements Callable<Void> {
     private double[][] weightAdjustments;
-    private int iterationCount = 0;
-    boolean finished = false;
+    private double[][] batch;
+    private int[] coordinates = new int[target.gridSizes().length];
+    private int[] neighbors;
+    private double[] neighborWeights;
+    private int iterationCount;
 
-    public WorkerThread(AtomicInteger counter) {
-      super();
-      this.counter = counter;
+    @Override
+    public Void call() {
+      double[][] oldWeights = target.weights();
+      if (weightAdjustments == null || weightAdjustments.length != oldWeights.length
+          || weightAdjustments[0].length != oldWeights[0].length) {
+        weightAdjustments = new double[oldWeights.length][oldWeights[0].length];
+      } else {
+        for (double[] row : weightAdjustments) {
+          Arrays.fill(row, 0);
+        }
+      }
+      iterationCount = 0;
+      int cycle = samplingStrategy.cycle();
+      int chunkSize = chunkSize(cycle);
+      if (batch == null || batch.length < chunkSize) {
+        batch = new double[chunkSize][];
+      }
+      if (neighborhood != null && (neighbors == null || neighbors.length < neighborhood.size())) {
+        neighbors = new int[neighborhood.size()];
+        neighborWeights = new double[neighborhood.size()];
+      }
+      int start;
+      while ((start = counter.getAndAdd(chunkSize)) < cycle) {
+        int count = Math.min(chunkSize, cycle - start);
+        samplingStrategy.nextBatch(count, batch);
+        for (int n = 0; n < count; n++) {
+          if (neighborhood != null) {
+            learnNeighborhood(batch[n], oldWeights);
+          } else {
+            learn(batch[n], oldWeights);
+          }
+        }
+        iterationCount += count;
+      }
+      return null;
     }
 
-    @Override
-    public synchronized void run() {
-      double[][] oldWeights = target.getWeights();
-      weightAdjustments = new double[oldWeights.length][oldWeights[0].length];
-      double[] input;
-      while (counter.getAndIncrement() < samplingStrategy.cycle()) {
-        synchronized (lock) {
-          input = samplingStrategy.next();
+    private void learn(double[] input, double[][] oldWeights) {
+      int u = target.bestMatchingIndex(input);
+      for (int v = 0; v < oldWeights.length; v++) {
+        double theta = coefficients.theta(v, u, iteration);
+        if (theta <= 0 && (!allowNegativeTheta || theta >= 0)) {
+          continue;
         }
+        adjust(input, oldWeights[v], weightAdjustments[v], alpha * theta);
+      }
+    }
 
-        int u = target.bestMatchingIndex(input);
-        for (int v = 0; v < oldWeights.length; v++) {
-          double theta = coefficients.theta(v, u, iteration);
-          if (theta <= 0 && (!allowNegativeTheta || theta >= 0)) {
-            continue;
-          }
-          double alpha = coefficients.alpha(iteration);
-          for (int j = 0; j < oldWeights[v].length; j++) {
-            double diff = input[j] - oldWeights[v][j];
-            weightAdjustments[v][j] += alpha * theta * diff;
-          }
+    /**
+     * Updates only the neighbors of the best matching neuron that the table lists.
+     */
+    private void learnNeighborhood(double[] input, double[][] oldWeights) {
+      int u = target.bestMatchingIndex(input);
+      int count = neighborhood.neighbors(u, coordinates, neighbors, neighborWeights);
+      for (int k = 0; k < count; k++) {
+        double weight = neighborWeights[k];
+        if (weight < 0 && !allowNegativeTheta) {
+          continue;
         }
-        iterationCount++;
+        int v = neighbors[k];
+        adjust(input, oldWeights[v], weightAdjustments[v], weight);
       }
-      finished = true;
     }
 
-    public synchronized boolean waitForFinish() {
-      return finished;
+    private void adjust(double[] input, double[] oldWeights, double[] adjustments, double rate) {
+      for (int j = 0; j < oldWeights.length; j++) {
+        adjustments[j] += rate * (input[j] - oldWeights[j]);
+      }
     }
 
     public double[][] getWeightAdjustments() {
@@ -67,8 +126,6 @@ public class SOMTrainer implements Trainer {
     }
   }
 
-  private Object lock = new Object();
-
   private SelfOrganizingMap target;
 
 
@@ -76,7 +133,15 @@ public class SOMTrainer implements Trainer {
   private LearningCoefficients coefficients;
 
   private int iteration;
-  private int threadCount = 4;
+  /**
+   * The learning rate and the neighborhood table of the current epoch.
+   */
+  private double alpha;
+  private NeighborhoodTable neighborhood;
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+  private final AtomicInteger counter = new AtomicInteger();
+  private List<Worker> workers;
+  private ExecutorService pool;
   private boolean allowNegativeTheta = false;
 
   public SOMTrainer(SelfOrganizingMap target, SamplingStrategy samplingStrategy,
@@ -88,41 +153,114 @@ public class SOMTrainer implements Trainer {
     this.iteration = 0;
   }
 
+  /**
+   * Trains one epoch. The workers claim samples until the strategy's cycle is used up, and the
+   * epoch ends once every worker has returned. The learning rate and the neighborhood table are
+   * computed once for the epoch. The weights then move by the sum of the adjustments of all
+   * workers divided by the number of samples of the epoch, so the step does not depend on the
+   * thread count.
+   */
   @Override
   public void iterate() {
-
-    AtomicInteger counter = new AtomicInteger(0);
-    List<WorkerThread> threads = new ArrayList<>(threadCount);
-    for (int i = 0; i < threadCount; i++) {
-      threads.add(new WorkerThread(counter));
-    }
-
-    for (WorkerThread w : threads) {
-      w.start();
+    counter.set(0);
+    alpha = coefficients.alpha(iteration);
+    neighborhood = coefficients.neighborhood(iteration);
+    if (workers == null) {
+      workers = new ArrayList<>(threadCount);
+      for (int i = 0; i < threadCount; i++) {
+        workers.add(new Worker());
+      }
     }
-    boolean allFinished = false;
-    while (!allFinished) {
-      allFinished = true;
-      for (WorkerThread w : threads) {
-        allFinished = allFinished && w.waitForFinish();
+    if (threadCount == 1) {
+      workers.get(0).call();
+    } else {
+      if (pool == null) {
+        pool = Executors.newFixedThreadPool(threadCount, runnable -> {
+          Thread thread = new Thread(runnable, "SOM worker");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      try {
+        for (Future<Void> done : pool.invokeAll(workers)) {
+          done.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while training", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("A worker failed", e.getCause());
       }
     }
 
-    double[][] weights = target.getWeights();
-    for (WorkerThread w : threads) {
-      double[][] weightAdjustments = w.getWeightAdjustments();
-      double iterationCount = w.getIterationCount();
-      for (int i = 0; i < weightAdjustments.length; i++) {
-        for (int j = 0; j < weightAdjustments[i].length; j++) {
-          weights[i][j] += weightAdjustments[i][j] / iterationCount;
+    double[][] weights = target.weights();
+    List<double[][]> adjustments = new ArrayList<>(workers.size());
+    double sampleCount = 0;
+    for (Worker w : workers) {
+      if (w.getIterationCount() > 0) {
+        adjustments.add(w.getWeightAdjustments());
+        sampleCount += w.getIterationCount();
+      }
+    }
+    for (int i = 0; i < weights.length && sampleCount > 0; i++) {
+      for (int j = 0; j < weights[i].length; j++) {
+        double sum = 0;
+        for (double[][] weightAdjustments : adjustments) {
+          sum += weightAdjustments[i][j];
         }
+        weights[i][j] += sum / sampleCount;
       }
     }
+    target.weightsChanged();
     iteration++;
 
   }
 
 
+  /**
+   * Returns the number of samples a worker claims at a time: enough that claiming is rare, few
+   * enough that every worker gets several chunks to balance the load.
+   */
+  private int chunkSize(int cycle) {
+    return Math.max(1, Math.min(MAX_CHUNK_SIZE, cycle / (CHUNKS_PER_THREAD * threadCount)));
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Sets the number of worker threads. The workers run on a pool of that size that is kept for
+   * the lifetime of the trainer; the default is one per available processor.
+   *
+   * @param threadCount the thread count, at least one
+   */
+  public void setThreadCount(int threadCount) {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Thread count must be positive, was " + threadCount);
+    }
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    this.threadCount = threadCount;
+    this.workers = null;
+  }
+
+  /**
+   * Shuts down the worker threads of the trainer. A closed trainer keeps working on the calling
+   * thread alone, until {@link #setThreadCount(int)} is called again.
+   */
+  @Override
+  public void close() {
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    threadCount = 1;
+    workers = null;
+  }
+
   @Override
   public void initialize(long randomSeed) {
     double density = 0.25;
@@ -132,7 +270,7 @@ public class SOMTrainer implements Trainer {
   }
 
   public void initialize(double density, double fill, Random rnd) {
-    double[][] weights = target.getWeights();
+    double[][] weights = target.weights();
     for (int i = 0; i < weights.length; i++) {
       for (int j = 0; j < weights[i].length; j++) {
         if (rnd.nextDouble() < density) {
@@ -142,6 +280,7 @@ public class SOMTrainer implements Trainer {
         }
       }
     }
+    target.weightsChanged();
   }
 
 }
@@ -2,8 +2,6 @@ package com.haem.ml.som;
 
 import java.io.Serializable;
 
-import com.haem.ml.utils.Measure;
-
 public class SelfOrganizingMap implements Serializable {
   private static final long serialVersionUID = 1L;
 
@@ -12,6 +10,11 @@ public class SelfOrganizingMap implements Serializable {
   private int[] gridSizes;
   private int[] gridFactors;
 
+  /**
+   * The best matching unit search over the current weights, built on first use.
+   */
+  private transient volatile BestMatchingSearch search;
+
   public SelfOrganizingMap(int dimension, int... gridSizes) {
     this.gridSizes = gridSizes;
     this.gridFactors = new int[gridSizes.length];
@@ -52,29 +55,99 @@ public class SelfOrganizingMap implements Serializable {
   }
 
   /**
-   * Returns the index of the best matching weight vector.
+   * Returns the index of the best matching weight vector, the nearest one in Euclidean distance.
+   * The search is built from the weights on first use and kept until they change; see
+   * {@link BestMatchingSearch}.
    * 
    * @param input
    * @return
    */
   public int bestMatchingIndex(double[] input) {
-    int closestIndex = 0;
-    double closest = Double.POSITIVE_INFINITY;
-    for (int i = 0; i < weights.length; i++) {
-      double euclideanDistance = Measure.euclideanDistance(input, weights[i]);
-      if (euclideanDistance < closest) {
-        closest = euclideanDistance;
-        closestIndex = i;
-      }
+    return search().bestMatchingIndex(input);
+  }
+
+  /**
+   * Finds the best matching weight vectors of a batch of inputs at once, as matrix products
+   * against the codebook that run on all cores. The squared norms of the weight vectors are
+   * cached with the search, until the weights change.
+   * 
+   * @param batch the inputs
+   * @param out receives the index of the best matching weight vector of each input
+   */
+  public void bestMatchingIndices(double[][] batch, int[] out) {
+    if (out.length < batch.length) {
+      throw new IllegalArgumentException(
+          "Output length " + out.length + " is less than the batch size " + batch.length);
     }
-    return closestIndex;
+    search().bestMatchingIndices(batch, out);
   }
 
-  public double[][] getWeights() {
+  private BestMatchingSearch search() {
+    BestMatchingSearch ret = search;
+    if (ret == null) {
+      ret = new BestMatchingSearch(weights);
+      search = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Discards the search structures built from the weights. Must be called after the weight
+   * vectors returned by {@link #weights()} have been modified in place.
+   */
+  void weightsChanged() {
+    search = null;
+  }
+
+  int[] gridSizes() {
+    return gridSizes;
+  }
+
+  int[] gridFactors() {
+    return gridFactors;
+  }
+
+  /**
+   * Returns the live weight vectors, for the trainer to update in place before it calls
+   * {@link #weightsChanged()}.
+   */
+  double[][] weights() {
     return weights;
   }
 
+  /**
+   * Returns a copy of the weight vectors. Changing the copy does not change the map; use
+   * {@link #setWeight(int, double[])} or {@link #setWeights(double[][])}.
+   */
+  public double[][] getWeights() {
+    return copy(weights);
+  }
+
+  /**
+   * Replaces all weight vectors with a copy of the given ones.
+   */
   public void setWeights(double[][] weights) {
-    this.weights = weights;
+    this.weights = copy(weights);
+    weightsChanged();
+  }
+
+  /**
+   * Replaces the weight vector of a neuron with a copy of the given one.
+   */
+  public void setWeight(int index, double[] weight) {
+    if (weight.length != weights[index].length) {
+      throw new IllegalArgumentException("Weight vector length " + weight.length
+          + " does not match the dimension " + weights[index].length);
+    }
+    System.arraycopy(weight, 0, weights[index], 0, weight.length);
+    weightsChanged();
+  }
+
+  private static double[][] copy(double[][] weights) {
+    double[][] ret = new double[weights.length][];
+    for (int i = 0; i < weights.length; i++) {
+      ret[i] = weights[i].clone();
+    }
+    return ret;
   }
 }
@@ -0,0 +1,41 @@
+package com.haem.ml.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cycles through an array of samples in order. The position in the cycle is a single atomic
+ * counter, so a batch of any size is claimed with one atomic increment and concurrent callers
+ * never wait for each other.
+ * 
+ * @author heikki
+ *
+ */
+public class ArraySamplingStrategy implements SamplingStrategy {
+  private final double[][] samples;
+  private final AtomicLong position = new AtomicLong();
+
+  public ArraySamplingStrategy(double[][] samples) {
+    if (samples.length == 0) {
+      throw new IllegalArgumentException("There must be at least one sample");
+    }
+    this.samples = samples;
+  }
+
+  @Override
+  public double[] next() {
+    return samples[(int) (position.getAndIncrement() % samples.length)];
+  }
+
+  @Override
+  public int cycle() {
+    return samples.length;
+  }
+
+  @Override
+  public void nextBatch(int count, double[][] out) {
+    long start = position.getAndAdd(count);
+    for (int i = 0; i < count; i++) {
+      out[i] = samples[(int) ((start + i) % samples.length)];
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.haem.ml.utils;
+
+/**
+ * A running sum using Neumaier's compensated summation, so that the result does not drift when
+ * many small values are added to a large total.
+ *
+ * @author heikki
+ *
+ */
+public final class CompensatedSum {
+  private double sum;
+  private double compensation;
+
+  public void add(double x) {
+    double t = sum + x;
+    if (Math.abs(sum) >= Math.abs(x)) {
+      compensation += (sum - t) + x;
+    } else {
+      compensation += (x - t) + sum;
+    }
+    sum = t;
+  }
+
+  public double value() {
+    return sum + compensation;
+  }
+}
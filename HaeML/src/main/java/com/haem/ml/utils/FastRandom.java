@@ -0,0 +1,60 @@
+package com.haem.ml.utils;
+
+/**
+ * A small, fast pseudorandom generator using the SplitMix64 algorithm. Unlike
+ * {@link java.util.Random}, it does no synchronization at all, so every thread should use its own
+ * instance; {@link #split()} derives statistically independent generators for that purpose.
+ * 
+ * @author heikki
+ *
+ */
+public class FastRandom {
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+  private long state;
+
+  public FastRandom(long seed) {
+    this.state = seed;
+  }
+
+  public long nextLong() {
+    state += GOLDEN_GAMMA;
+    long z = state;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Returns a uniformly distributed double in [0, 1).
+   */
+  public double nextDouble() {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+
+  /**
+   * Returns a uniformly distributed integer in [0, bound).
+   */
+  public int nextInt(int bound) {
+    if (bound <= 0) {
+      throw new IllegalArgumentException("Bound must be positive, was " + bound);
+    }
+    return (int) (((nextLong() >>> 33) * bound) >>> 31);
+  }
+
+  /**
+   * Returns a new generator seeded from this one's stream.
+   */
+  public FastRandom split() {
+    return new FastRandom(nextLong());
+  }
+
+  public long getState() {
+    return state;
+  }
+
+  public void setState(long state) {
+    this.state = state;
+  }
+}
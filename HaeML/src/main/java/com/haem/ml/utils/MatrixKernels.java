@@ -0,0 +1,334 @@
+package com.haem.ml.utils;
+
+/**
+ * Dense linear algebra kernels over flat, row-major matrices. An mxn matrix {@code a} stores
+ * element (i, j) at {@code a[i * n + j]}.
+ * 
+ * @author heikki
+ *
+ */
+public class MatrixKernels {
+  /**
+   * Number of output columns kept hot while streaming over the rows of a matrix. 512 doubles is
+   * 4kB, which leaves room in L1 for the matrix rows being read.
+   */
+  public static final int COLUMN_BLOCK = 512;
+
+  /**
+   * Depth of the panel of the right hand matrix that is reused across all rows of the left hand
+   * matrix in {@link #multiply}. A 128xCOLUMN_BLOCK panel is 512kB and stays in L2.
+   */
+  public static final int DEPTH_BLOCK = 128;
+
+  /**
+   * Number of right hand rows reused across the left hand rows in {@link #multiplyTransposeRight}.
+   */
+  public static final int ROW_BLOCK = 64;
+
+  private MatrixKernels() {}
+
+  /**
+   * Computes y += x*A, where A is mxn. The rows of A are read contiguously and the output is
+   * accumulated one column block at a time.
+   * 
+   * @param x vector of length m
+   * @param a mxn matrix
+   * @param y vector of length n to accumulate into
+   * @param m row count of A
+   * @param n column count of A
+   */
+  public static void addVectorMatrix(double[] x, double[] a, double[] y, int m, int n) {
+    addVectorMatrix(x, a, y, m, n, 0, n);
+  }
+
+  /**
+   * As {@link #addVectorMatrix(double[], double[], double[], int, int)}, for the columns
+   * [columnStart, columnEnd) of A and y only.
+   */
+  public static void addVectorMatrix(double[] x, double[] a, double[] y, int m, int n,
+      int columnStart, int columnEnd) {
+    for (int j0 = columnStart; j0 < columnEnd; j0 += COLUMN_BLOCK) {
+      int j1 = Math.min(columnEnd, j0 + COLUMN_BLOCK);
+      for (int i = 0; i < m; i++) {
+        double xi = x[i];
+        if (xi == 0) {
+          continue;
+        }
+        int row = i * n;
+        for (int j = j0; j < j1; j++) {
+          y[j] += xi * a[row + j];
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes y += A*x, where A is mxn. Four rows are processed at a time so that each load of x is
+   * shared between four dot products.
+   * 
+   * @param a mxn matrix
+   * @param x vector of length n
+   * @param y vector of length m to accumulate into
+   * @param m row count of A
+   * @param n column count of A
+   */
+  public static void addMatrixVector(double[] a, double[] x, double[] y, int m, int n) {
+    addMatrixVector(a, x, y, m, n, 0, n);
+  }
+
+  /**
+   * As {@link #addMatrixVector(double[], double[], double[], int, int)}, for the columns
+   * [columnStart, columnEnd) of A and elements of x only, which gives the part of A*x contributed
+   * by that range.
+   */
+  public static void addMatrixVector(double[] a, double[] x, double[] y, int m, int n,
+      int columnStart, int columnEnd) {
+    int i = 0;
+    for (; i + 4 <= m; i += 4) {
+      int r0 = i * n;
+      int r1 = r0 + n;
+      int r2 = r1 + n;
+      int r3 = r2 + n;
+      double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      for (int j = columnStart; j < columnEnd; j++) {
+        double xj = x[j];
+        s0 += a[r0 + j] * xj;
+        s1 += a[r1 + j] * xj;
+        s2 += a[r2 + j] * xj;
+        s3 += a[r3 + j] * xj;
+      }
+      y[i] += s0;
+      y[i + 1] += s1;
+      y[i + 2] += s2;
+      y[i + 3] += s3;
+    }
+    for (; i < m; i++) {
+      y[i] += dot(a, i * n + columnStart, x, columnStart, columnEnd - columnStart);
+    }
+  }
+
+  /**
+   * Computes y += the sum of the given rows of A, where A is m x n. This is x*A for a binary x
+   * whose active elements are listed in rows, and costs O(count * n) regardless of m.
+   * 
+   * @param rows indices of the rows to add
+   * @param count number of valid entries in rows
+   * @param a m x n matrix
+   * @param y vector of length n to accumulate into
+   * @param n column count of A
+   */
+  public static void addRows(int[] rows, int count, double[] a, double[] y, int n) {
+    for (int j0 = 0; j0 < n; j0 += COLUMN_BLOCK) {
+      int j1 = Math.min(n, j0 + COLUMN_BLOCK);
+      for (int r = 0; r < count; r++) {
+        int row = rows[r] * n;
+        for (int j = j0; j < j1; j++) {
+          y[j] += a[row + j];
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes y += the sum of the given columns of A, where A is m x n. This is A*x for a binary x
+   * whose active elements are listed in columns, and costs O(m * count) regardless of n.
+   * 
+   * @param a m x n matrix
+   * @param columns indices of the columns to add
+   * @param count number of valid entries in columns
+   * @param y array holding the vector of length m to accumulate into
+   * @param yOffset offset of the vector in y
+   * @param m row count of A
+   * @param n column count of A
+   */
+  public static void addColumns(double[] a, int[] columns, int count, double[] y, int yOffset,
+      int m, int n) {
+    for (int i = 0; i < m; i++) {
+      int row = i * n;
+      double sum = 0;
+      for (int c = 0; c < count; c++) {
+        sum += a[row + columns[c]];
+      }
+      y[yOffset + i] += sum;
+    }
+  }
+
+  /**
+   * Writes the indices of the non-zero elements of {@code length} elements of x starting at
+   * offset into indices, and returns their count.
+   */
+  public static int nonZeroIndices(double[] x, int offset, int length, int[] indices) {
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      if (x[offset + i] != 0) {
+        indices[count++] = i;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the sum of the elements of a, compensated with {@link CompensatedSum} so that the
+   * result does not drift for large arrays of small values.
+   */
+  public static double sum(double[] a) {
+    CompensatedSum sum = new CompensatedSum();
+    for (int i = 0; i < a.length; i++) {
+      sum.add(a[i]);
+    }
+    return sum.value();
+  }
+
+  /**
+   * Returns the dot product of {@code length} elements of a and b starting at the given offsets.
+   */
+  public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    double ret = 0;
+    for (int k = 0; k < length; k++) {
+      ret += a[aOffset + k] * b[bOffset + k];
+    }
+    return ret;
+  }
+
+  /**
+   * Computes C += A*B, where A is m x k, B is k x n and C is m x n. B is processed in
+   * DEPTH_BLOCK x COLUMN_BLOCK panels that are reused across every row of A, and zero elements of A
+   * are skipped, which makes the kernel cheap for binary state matrices.
+   * 
+   * @param a m x k matrix
+   * @param b k x n matrix
+   * @param c m x n matrix to accumulate into
+   * @param m row count of A and C
+   * @param k column count of A, row count of B
+   * @param n column count of B and C
+   */
+  public static void multiply(double[] a, double[] b, double[] c, int m, int k, int n) {
+    multiply(a, b, c, m, k, n, 0, n);
+  }
+
+  /**
+   * As {@link #multiply(double[], double[], double[], int, int, int)}, for the columns
+   * [columnStart, columnEnd) of B and C only.
+   */
+  public static void multiply(double[] a, double[] b, double[] c, int m, int k, int n,
+      int columnStart, int columnEnd) {
+    for (int j0 = columnStart; j0 < columnEnd; j0 += COLUMN_BLOCK) {
+      int j1 = Math.min(columnEnd, j0 + COLUMN_BLOCK);
+      for (int p0 = 0; p0 < k; p0 += DEPTH_BLOCK) {
+        int p1 = Math.min(k, p0 + DEPTH_BLOCK);
+        for (int i = 0; i < m; i++) {
+          int aRow = i * k;
+          int cRow = i * n;
+          for (int p = p0; p < p1; p++) {
+            double aip = a[aRow + p];
+            if (aip == 0) {
+              continue;
+            }
+            int bRow = p * n;
+            for (int j = j0; j < j1; j++) {
+              c[cRow + j] += aip * b[bRow + j];
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes C += A*B^T, where A is m x k, B is n x k and C is m x n. Every element of C is a dot
+   * product of two contiguous rows; ROW_BLOCK rows of B are kept in cache while all rows of A are
+   * run against them, four rows of A at a time.
+   * 
+   * @param a m x k matrix
+   * @param b n x k matrix
+   * @param c m x n matrix to accumulate into
+   * @param m row count of A and C
+   * @param k column count of A and B
+   * @param n row count of B, column count of C
+   */
+  public static void multiplyTransposeRight(double[] a, double[] b, double[] c, int m, int k,
+      int n) {
+    multiplyTransposeRight(a, b, c, m, k, n, 0, k);
+  }
+
+  /**
+   * As {@link #multiplyTransposeRight(double[], double[], double[], int, int, int)}, for the
+   * columns [depthStart, depthEnd) of A and B only, which gives the part of A*B^T contributed by
+   * that range.
+   */
+  public static void multiplyTransposeRight(double[] a, double[] b, double[] c, int m, int k, int n,
+      int depthStart, int depthEnd) {
+    for (int j0 = 0; j0 < n; j0 += ROW_BLOCK) {
+      int j1 = Math.min(n, j0 + ROW_BLOCK);
+      int i = 0;
+      for (; i + 4 <= m; i += 4) {
+        int a0 = i * k;
+        int a1 = a0 + k;
+        int a2 = a1 + k;
+        int a3 = a2 + k;
+        for (int j = j0; j < j1; j++) {
+          int bRow = j * k;
+          double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+          for (int p = depthStart; p < depthEnd; p++) {
+            double bjp = b[bRow + p];
+            s0 += a[a0 + p] * bjp;
+            s1 += a[a1 + p] * bjp;
+            s2 += a[a2 + p] * bjp;
+            s3 += a[a3 + p] * bjp;
+          }
+          c[i * n + j] += s0;
+          c[(i + 1) * n + j] += s1;
+          c[(i + 2) * n + j] += s2;
+          c[(i + 3) * n + j] += s3;
+        }
+      }
+      for (; i < m; i++) {
+        for (int j = j0; j < j1; j++) {
+          c[i * n + j] += dot(a, i * k + depthStart, b, j * k + depthStart, depthEnd - depthStart);
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes C += alpha*A^T*B, where A is k x m, B is k x n and C is m x n. This is the sum of k
+   * scaled outer products, accumulated so that each block of a row of C is loaded once and
+   * updated from all k rows of B while it is in cache.
+   * 
+   * @param a k x m matrix
+   * @param b k x n matrix
+   * @param c m x n matrix to accumulate into
+   * @param k row count of A and B
+   * @param m column count of A, row count of C
+   * @param n column count of B and C
+   * @param alpha scale of the product
+   */
+  public static void addTransposeLeftProduct(double[] a, double[] b, double[] c, int k, int m,
+      int n, double alpha) {
+    addTransposeLeftProduct(a, b, c, k, m, n, alpha, 0, n);
+  }
+
+  /**
+   * As {@link #addTransposeLeftProduct(double[], double[], double[], int, int, int, double)}, for
+   * the columns [columnStart, columnEnd) of B and C only.
+   */
+  public static void addTransposeLeftProduct(double[] a, double[] b, double[] c, int k, int m,
+      int n, double alpha, int columnStart, int columnEnd) {
+    for (int j0 = columnStart; j0 < columnEnd; j0 += COLUMN_BLOCK) {
+      int j1 = Math.min(columnEnd, j0 + COLUMN_BLOCK);
+      for (int i = 0; i < m; i++) {
+        int cRow = i * n;
+        for (int p = 0; p < k; p++) {
+          double api = alpha * a[p * m + i];
+          if (api == 0) {
+            continue;
+          }
+          int bRow = p * n;
+          for (int j = j0; j < j1; j++) {
+            c[cRow + j] += api * b[bRow + j];
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.haem.ml.utils;
+
+/**
+ * Conversions between arrays of primitive types.
+ *
+ * @author heikki
+ *
+ */
+public class PrimitiveArrays {
+  private PrimitiveArrays() {}
+
+  /**
+   * Widens single precision values to double precision, keeping null as null.
+   */
+  public static double[] toDouble(float[] values) {
+    if (values == null) {
+      return null;
+    }
+    double[] ret = new double[values.length];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = values[i];
+    }
+    return ret;
+  }
+
+  /**
+   * Rounds double precision values to single precision, keeping null as null.
+   */
+  public static float[] toFloat(double[] values) {
+    if (values == null) {
+      return null;
+    }
+    float[] ret = new float[values.length];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = (float) values[i];
+    }
+    return ret;
+  }
+}
@@ -15,4 +15,21 @@ public interface SamplingStrategy {
    * @return
    */
   int cycle();
+
+  /**
+   * Writes the next count samples to the start of out. This may be called from several threads
+   * at once, so that workers can take a chunk of samples at a time instead of one; the default
+   * takes the samples from {@link #next()} under the lock of the strategy. Strategies that can
+   * hand out chunks without locking should override it.
+   * 
+   * @param count the number of samples
+   * @param out receives the samples
+   */
+  default void nextBatch(int count, double[][] out) {
+    synchronized (this) {
+      for (int i = 0; i < count; i++) {
+        out[i] = next();
+      }
+    }
+  }
 }
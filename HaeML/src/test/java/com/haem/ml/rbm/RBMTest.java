@@ -1,9 +1,815 @@
 package com.haem.ml.rbm;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
+import org.encog.engine.network.activation.ActivationRamp;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.haem.ml.utils.FastRandom;
+import com.haem.ml.utils.FastSigmoid;
+
 public class RBMTest {
 
+  private static final double EPSILON = 1e-9;
+
   private Random random = new Random(2241);
 
+  private RestrictedBoltzmannMachine randomMachine(int visible, int hidden) {
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(visible, hidden);
+    for (int i = 0; i < visible; i++) {
+      rbm.setVisibleBias(i, random.nextGaussian());
+      for (int j = 0; j < hidden; j++) {
+        rbm.setWeight(random.nextGaussian(), i, j);
+      }
+    }
+    for (int j = 0; j < hidden; j++) {
+      rbm.setHiddenBias(j, random.nextGaussian());
+    }
+    return rbm;
+  }
+
+  private double[] randomVector(int length) {
+    double[] ret = new double[length];
+    for (int i = 0; i < length; i++) {
+      ret[i] = random.nextDouble();
+    }
+    return ret;
+  }
+
+  private static double sigmoid(double x) {
+    return 1 / (1 + Math.exp(-x));
+  }
+
+  @Test
+  public void testProbabilitiesMatchNaiveSums() {
+    int[][] shapes = {{37, 700}, {700, 37}, {5, 5}, {1, 3}};
+    for (int[] shape : shapes) {
+      int visible = shape[0];
+      int hidden = shape[1];
+      RestrictedBoltzmannMachine rbm = randomMachine(visible, hidden);
+      rbm.setExactActivation(true);
+      double[] v = randomVector(visible);
+      double[] h = randomVector(hidden);
+
+      double[] hp = rbm.hiddenProbabilities(v);
+      for (int j = 0; j < hidden; j++) {
+        double sum = rbm.getHiddenBias(j);
+        for (int i = 0; i < visible; i++) {
+          sum += v[i] * rbm.getWeight(i, j);
+        }
+        Assert.assertEquals("Hidden probability " + j, sigmoid(sum), hp[j], EPSILON);
+      }
+
+      double[] vp = rbm.visibleProbabilities(h);
+      for (int i = 0; i < visible; i++) {
+        double sum = rbm.getVisibleBias(i);
+        for (int j = 0; j < hidden; j++) {
+          sum += h[j] * rbm.getWeight(i, j);
+        }
+        Assert.assertEquals("Visible probability " + i, sigmoid(sum), vp[i], EPSILON);
+      }
+    }
+  }
+
+  @Test
+  public void testFastSigmoid() {
+    for (double x = -40; x <= 40; x += 0.0037) {
+      Assert.assertEquals(sigmoid(x), FastSigmoid.sigmoid(x), FastSigmoid.MAX_ERROR);
+    }
+    Assert.assertTrue(Double.isNaN(FastSigmoid.sigmoid(Double.NaN)));
+
+    RestrictedBoltzmannMachine rbm = randomMachine(37, 300);
+    double[] v = randomVector(37);
+    double[] fast = rbm.hiddenProbabilities(v);
+    rbm.setExactActivation(true);
+    double[] exact = rbm.hiddenProbabilities(v);
+    Assert.assertArrayEquals(exact, fast, FastSigmoid.MAX_ERROR);
+    Assert.assertFalse(Arrays.equals(exact, fast));
+  }
+
+  @Test
+  public void testBatchProbabilitiesMatchSingleVectors() {
+    int visible = 53;
+    int hidden = 650;
+    int batchSize = 7;
+    RestrictedBoltzmannMachine rbm = randomMachine(visible, hidden);
+    double[] visibleBatch = randomVector(batchSize * visible);
+    double[] hiddenBatch = randomVector(batchSize * hidden);
+    double[] hiddenOut = new double[batchSize * hidden];
+    double[] visibleOut = new double[batchSize * visible];
+    rbm.hiddenProbabilities(visibleBatch, hiddenOut, batchSize);
+    rbm.visibleProbabilities(hiddenBatch, visibleOut, batchSize);
+
+    for (int b = 0; b < batchSize; b++) {
+      double[] hp = rbm.hiddenProbabilities(
+          Arrays.copyOfRange(visibleBatch, b * visible, (b + 1) * visible));
+      Assert.assertArrayEquals(hp,
+          Arrays.copyOfRange(hiddenOut, b * hidden, (b + 1) * hidden), EPSILON);
+      double[] vp = rbm.visibleProbabilities(
+          Arrays.copyOfRange(hiddenBatch, b * hidden, (b + 1) * hidden));
+      Assert.assertArrayEquals(vp,
+          Arrays.copyOfRange(visibleOut, b * visible, (b + 1) * visible), EPSILON);
+    }
+  }
+
+  private RBMTrainer stripeTrainer(RestrictedBoltzmannMachine rbm, int listCount) {
+    return new RBMTrainer(0.1, rbm, stripeData(rbm.visibleCount(), listCount));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<double[]>[] stripeData(int visible, int listCount) {
+    List<double[]>[] lists = new List[listCount];
+    for (int l = 0; l < listCount; l++) {
+      lists[l] = new ArrayList<>();
+      for (int n = 0; n < 20; n++) {
+        double[] v = new double[visible];
+        for (int i = 0; i < visible; i++) {
+          v[i] = (i + l) % listCount < listCount / 2 ? 0.9 : 0.1;
+        }
+        lists[l].add(v);
+      }
+    }
+    return lists;
+  }
+
+  private static List<double[]> flatten(List<double[]>[] lists) {
+    List<double[]> ret = new ArrayList<>();
+    for (List<double[]> list : lists) {
+      ret.addAll(list);
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the mean squared difference of the vectors and their mean-field reconstructions.
+   */
+  private static double reconstructionError(RestrictedBoltzmannMachine rbm,
+      List<double[]> vectors) {
+    double sum = 0;
+    for (double[] v : vectors) {
+      double[] r = rbm.visibleProbabilities(rbm.hiddenProbabilities(v));
+      for (int i = 0; i < v.length; i++) {
+        sum += (v[i] - r[i]) * (v[i] - r[i]);
+      }
+    }
+    return sum / vectors.size();
+  }
+
+  /**
+   * Trains for 20 iterations, checks that the reconstructions of the vectors improve, and returns
+   * the final reconstruction error.
+   */
+  private double assertTrains(RBMTrainer trainer, RestrictedBoltzmannMachine rbm,
+      List<double[]> vectors) {
+    trainer.initialize(2241);
+    double initial = reconstructionError(rbm, vectors);
+    for (int iter = 0; iter < 20; iter++) {
+      trainer.iterate();
+      Assert.assertTrue("Error must stay finite", Double.isFinite(trainer.getError()));
+    }
+    double trained = reconstructionError(rbm, vectors);
+    Assert.assertTrue("Reconstruction error " + trained + " must fall well below " + initial,
+        trained < 0.75 * initial);
+    return trained;
+  }
+
+  @Test
+  public void testTrainerIterates() {
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+    assertTrains(stripeTrainer(rbm, 2), rbm, flatten(stripeData(16, 2)));
+  }
+
+  @Test
+  public void testParallelTrainerIterates() {
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+    RBMTrainer trainer = stripeTrainer(rbm, 16);
+    trainer.setThreadCount(4);
+    assertTrains(trainer, rbm, flatten(stripeData(16, 16)));
+    trainer.close();
+    Assert.assertEquals(1, trainer.getThreadCount());
+    trainer.iterate();
+    Assert.assertTrue(Double.isFinite(trainer.getError()));
+  }
+
+  @Test
+  public void testAsynchronousTrainerConverges() {
+    RestrictedBoltzmannMachine synchronous = new RestrictedBoltzmannMachine(16, 8);
+    RBMTrainer synchronousTrainer = stripeTrainer(synchronous, 16);
+    synchronousTrainer.setThreadCount(4);
+    double expected = assertTrains(synchronousTrainer, synchronous, flatten(stripeData(16, 16)));
+    synchronousTrainer.close();
+
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+    RBMTrainer trainer = stripeTrainer(rbm, 16);
+    trainer.setThreadCount(4);
+    trainer.setAsynchronous(true);
+    // The asynchronous result depends on thread timing; over many runs and seeds it stayed
+    // within 1.6 times the synchronous error.
+    double actual = assertTrains(trainer, rbm, flatten(stripeData(16, 16)));
+    trainer.close();
+    Assert.assertTrue("Asynchronous error " + actual + " must be close to " + expected,
+        actual < 2 * expected);
+  }
+
+  /**
+   * Trains with persistent chains on four threads from four seeds, and returns the untrained
+   * reconstruction error and the error of the last five of 20 iterations, both averaged over the
+   * seeds. The fantasy particles make the error of persistent training swing from one iteration
+   * to the next, so only the average is stable enough to test.
+   */
+  private double[] persistentErrors(int chains, boolean asynchronous) {
+    List<double[]> vectors = flatten(stripeData(16, 16));
+    double initial = 0;
+    double trained = 0;
+    for (long seed = 2241; seed < 2245; seed++) {
+      RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+      RBMTrainer trainer = stripeTrainer(rbm, 16);
+      trainer.setThreadCount(4);
+      trainer.setAsynchronous(asynchronous);
+      trainer.setPersistentChains(chains);
+      trainer.initialize(seed);
+      initial += reconstructionError(rbm, vectors) / 4;
+      for (int iter = 0; iter < 20; iter++) {
+        trainer.iterate();
+        Assert.assertTrue("Error must stay finite", Double.isFinite(trainer.getError()));
+        if (iter >= 15) {
+          trained += reconstructionError(rbm, vectors) / 20;
+        }
+      }
+      trainer.close();
+    }
+    return new double[] {initial, trained};
+  }
+
+  @Test
+  public void testPersistentTrainerIterates() {
+    double[] errors = persistentErrors(32, false);
+    Assert.assertTrue("Reconstruction error " + errors[1] + " must fall well below " + errors[0],
+        errors[1] < 0.75 * errors[0]);
+  }
+
+  @Test
+  public void testAsynchronousPersistentTrainerConverges() {
+    double expected = persistentErrors(8, false)[1];
+    // The asynchronous result depends on thread timing; over many runs it stayed within 1.3
+    // times the synchronous error.
+    double actual = persistentErrors(8, true)[1];
+    Assert.assertTrue("Asynchronous error " + actual + " must be close to " + expected,
+        actual < 1.6 * expected);
+
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+    RBMTrainer trainer = stripeTrainer(rbm, 16);
+    trainer.setThreadCount(4);
+    trainer.setAsynchronous(true);
+    trainer.setPersistentChains(8);
+    trainer.initialize(2241);
+    trainer.iterate();
+    RestrictedBoltzmannMachine before = rbm.clone();
+    trainer.setPersistentChains(2);
+    try {
+      trainer.iterate();
+      Assert.fail("Fewer chains than threads must be rejected in asynchronous mode");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(before, rbm);
+    }
+    trainer.close();
+  }
+
+  @Test
+  public void testTrackedWeightSumMatchesWeights() {
+    for (boolean asynchronous : new boolean[] {false, true}) {
+      RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+      RBMTrainer trainer = stripeTrainer(rbm, 16);
+      trainer.setThreadCount(4);
+      trainer.setAsynchronous(asynchronous);
+      trainer.initialize(2241);
+      for (int iter = 0; iter < 6; iter++) {
+        if (iter == 3) {
+          rbm.setWeight(rbm.getWeight(0, 0) + 100, 0, 0);
+        }
+        trainer.iterate();
+        Assert.assertEquals("Iteration " + iter, rbm.weightSum(), trainer.trackedWeightSum(),
+            1e-9);
+      }
+      trainer.close();
+    }
+  }
+
+  @Test
+  public void testMonitorIntervals() {
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+    RBMTrainer trainer = stripeTrainer(rbm, 16);
+    trainer.setMonitorInterval(2);
+    trainer.setOverfitInterval(4);
+    trainer.setMonitorSampleSize(2);
+    trainer.initialize(2241);
+    double error = trainer.getError();
+    double overfit = trainer.getOverfit();
+    for (int iter = 0; iter < 9; iter++) {
+      trainer.iterate();
+      boolean monitored = iter % 2 == 0;
+      Assert.assertEquals("Error of iteration " + iter, monitored,
+          trainer.getError() != error);
+      Assert.assertEquals("Overfit of iteration " + iter, iter % 4 == 0,
+          trainer.getOverfit() != overfit);
+      error = trainer.getError();
+      overfit = trainer.getOverfit();
+    }
+    try {
+      trainer.setOverfitInterval(0);
+      Assert.fail("A zero overfit interval must be rejected");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(4, trainer.getOverfitInterval());
+    }
+  }
+
+  @Test
+  public void testStatisticsDistance() {
+    double[] v = randomVector(13);
+    double[] h = randomVector(7);
+    double[] r = randomVector(13);
+    double[] s = randomVector(7);
+    double expected = 0;
+    for (int i = 0; i < v.length; i++) {
+      for (int j = 0; j < h.length; j++) {
+        double d = v[i] * h[j] - r[i] * s[j];
+        expected += d * d;
+      }
+    }
+    Assert.assertEquals(expected, RBMTrainer.statisticsDistance(v, h, r, s), EPSILON);
+    Assert.assertEquals(0, RBMTrainer.statisticsDistance(v, h, v, h), EPSILON);
+  }
+
+  @Test
+  public void testStreamingTrainerIterates() throws IOException {
+    List<double[]> vectors = new ArrayList<>();
+    for (List<double[]> list : stripeData(16, 16)) {
+      vectors.addAll(list);
+    }
+    // The source is sorted by stripe, so without shuffling every minibatch would hold a single
+    // stripe and training would fall far behind training on the lists.
+    RestrictedBoltzmannMachine listed = new RestrictedBoltzmannMachine(16, 8);
+    double expected = assertTrains(stripeTrainer(listed, 16), listed, vectors);
+    Path path = Files.createTempFile("rbm", ".vectors");
+    try {
+      VectorFile file = VectorFile.write(path, 16, vectors);
+      Assert.assertEquals(vectors.size(), file.size());
+      try (TrainingSource.Pass read = file.iterator()) {
+        for (double[] v : vectors) {
+          Assert.assertArrayEquals(v, read.next(), 0);
+        }
+        Assert.assertFalse(read.hasNext());
+      }
+      TrainingSource.Pass partial = file.iterator();
+      Assert.assertArrayEquals(vectors.get(0), partial.next(), 0);
+      partial.close();
+      partial.close();
+
+      RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+      RBMTrainer trainer = new RBMTrainer(0.1, rbm, file);
+      trainer.setThreadCount(4);
+      trainer.setAsynchronous(true);
+      // The asynchronous result depends on thread timing; over many runs and seeds it stayed
+      // within 1.6 times the list error.
+      double actual = assertTrains(trainer, rbm, vectors);
+      trainer.close();
+      Assert.assertTrue("Asynchronous streamed error " + actual
+          + " must be close to the list error " + expected, actual < 2 * expected);
+    } finally {
+      Files.delete(path);
+    }
+
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+    RBMTrainer trainer = new RBMTrainer(0.1, rbm,
+        TrainingSource.generated(vectors.size(), 16, index -> vectors.get((int) index)));
+    trainer.setThreadCount(2);
+    trainer.setBatchSize(16);
+    double actual = assertTrains(trainer, rbm, vectors);
+    Assert.assertTrue("Streamed error " + actual + " must be close to the list error " + expected,
+        actual < 2 * expected);
+    double[] mean = new double[16];
+    for (double[] v : vectors) {
+      for (int i = 0; i < 16; i++) {
+        mean[i] += v[i] / vectors.size();
+      }
+    }
+    trainer.initialize(2241);
+    for (int i = 0; i < 16; i++) {
+      Assert.assertEquals(Math.log(mean[i] / (1 - mean[i])), rbm.getVisibleBias(i), 1e-6);
+    }
+    trainer.close();
+  }
+
+  @Test
+  public void testSampledStates() {
+    FastRandom fastRandom = new FastRandom(2241);
+    double[] probabilities = new double[130];
+    boolean[] expected = new boolean[130];
+    for (int i = 0; i < probabilities.length; i++) {
+      expected[i] = random.nextBoolean();
+      probabilities[i] = expected[i] ? 1 : 0;
+    }
+    boolean[] states = new boolean[130];
+    RestrictedBoltzmannMachine.probabilitiesToBoolean(probabilities, states, fastRandom);
+    Assert.assertArrayEquals(expected, states);
+    Assert.assertArrayEquals(expected,
+        RestrictedBoltzmannMachine.probabilitiesToBoolean(probabilities));
+
+    int[] active = new int[130];
+    int count = RestrictedBoltzmannMachine.sampleActive(probabilities, active, fastRandom);
+    Assert.assertEquals(count, RestrictedBoltzmannMachine.activeIndices(expected, new int[130]));
+    for (int n = 0; n < count; n++) {
+      Assert.assertTrue("Unit " + active[n], expected[active[n]]);
+    }
+  }
+
+  @Test
+  public void testTrainingIsReproducible() {
+    RestrictedBoltzmannMachine first = new RestrictedBoltzmannMachine(16, 8);
+    RestrictedBoltzmannMachine second = new RestrictedBoltzmannMachine(16, 8);
+    RBMTrainer firstTrainer = stripeTrainer(first, 16);
+    RBMTrainer secondTrainer = stripeTrainer(second, 16);
+    firstTrainer.setThreadCount(4);
+    secondTrainer.setThreadCount(4);
+    firstTrainer.initialize(42);
+    secondTrainer.initialize(42);
+    for (int iter = 0; iter < 3; iter++) {
+      firstTrainer.iterate();
+      secondTrainer.iterate();
+    }
+    second.setFunction(first.getFunction());
+    Assert.assertEquals("Equal seeds must train equal machines", first, second);
+  }
+
+  @Test
+  public void testSparseStatesMatchDense() {
+    int visible = 90;
+    int hidden = 140;
+    int batchSize = 5;
+    RestrictedBoltzmannMachine rbm = randomMachine(visible, hidden);
+    double[] states = new double[batchSize * hidden];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = random.nextDouble() < 0.15 ? 1 : 0;
+    }
+    double[] dense = new double[batchSize * visible];
+    double[] sparse = new double[batchSize * visible];
+    rbm.visibleProbabilities(states, dense, batchSize);
+    rbm.visibleProbabilitiesOfStates(states, sparse, batchSize);
+    Assert.assertArrayEquals(dense, sparse, EPSILON);
+
+    boolean[] visibleState = new boolean[visible];
+    for (int i = 0; i < visible; i++) {
+      visibleState[i] = random.nextDouble() < 0.15;
+    }
+    double[] asDouble = new double[visible];
+    for (int i = 0; i < visible; i++) {
+      asDouble[i] = visibleState[i] ? 1 : 0;
+    }
+    Assert.assertArrayEquals(rbm.hiddenProbabilities(asDouble),
+        rbm.hiddenProbabilities(visibleState), EPSILON);
+  }
+
+  @Test
+  public void testShardsMatchUnsharded() {
+    int visible = 37;
+    int hidden = 700;
+    int batchSize = 3;
+    RestrictedBoltzmannMachine rbm = randomMachine(visible, hidden);
+    RestrictedBoltzmannMachine sharded = rbm.clone();
+    sharded.setShardCount(4);
+    double[] input = randomVector(batchSize * visible);
+    double[] states = new double[batchSize * hidden];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = random.nextDouble() < 0.15 ? 1 : 0;
+    }
+    double[] expected = new double[batchSize * hidden];
+    double[] actual = new double[batchSize * hidden];
+    rbm.hiddenProbabilities(input, expected, batchSize);
+    sharded.hiddenProbabilities(input, actual, batchSize);
+    Assert.assertArrayEquals(expected, actual, EPSILON);
+    double[] single = Arrays.copyOf(input, visible);
+    Assert.assertArrayEquals(rbm.hiddenProbabilities(single), sharded.hiddenProbabilities(single),
+        EPSILON);
+
+    expected = new double[batchSize * visible];
+    actual = new double[batchSize * visible];
+    rbm.visibleProbabilities(states, expected, batchSize);
+    sharded.visibleProbabilities(states, actual, batchSize);
+    Assert.assertArrayEquals(expected, actual, EPSILON);
+    sharded.visibleProbabilitiesOfStates(states, actual, batchSize);
+    Assert.assertArrayEquals(expected, actual, EPSILON);
+    // Again, with the shard buffers reused, and with a different shard count.
+    sharded.visibleProbabilitiesOfStates(states, actual, batchSize);
+    Assert.assertArrayEquals(expected, actual, EPSILON);
+    sharded.setShardCount(3);
+    sharded.visibleProbabilities(states, actual, batchSize);
+    Assert.assertArrayEquals(expected, actual, EPSILON);
+    double[] singleExpected = new double[visible];
+    double[] singleActual = new double[visible];
+    rbm.visibleProbabilities(Arrays.copyOf(states, hidden), singleExpected);
+    sharded.visibleProbabilities(Arrays.copyOf(states, hidden), singleActual);
+    Assert.assertArrayEquals(singleExpected, singleActual, EPSILON);
+  }
+
+  @Test
+  public void testShardedTrainingMatchesUnsharded() {
+    RestrictedBoltzmannMachine rbm = new RestrictedBoltzmannMachine(16, 8);
+    RestrictedBoltzmannMachine sharded = new RestrictedBoltzmannMachine(16, 8);
+    sharded.setShardCount(4);
+    RBMTrainer trainer = stripeTrainer(rbm, 16);
+    RBMTrainer shardedTrainer = stripeTrainer(sharded, 16);
+    trainer.initialize(42);
+    shardedTrainer.initialize(42);
+    for (int iter = 0; iter < 3; iter++) {
+      trainer.iterate();
+      shardedTrainer.iterate();
+    }
+    for (int i = 0; i < 16; i++) {
+      for (int j = 0; j < 8; j++) {
+        Assert.assertEquals("Weight " + i + ", " + j, rbm.getWeight(i, j),
+            sharded.getWeight(i, j), EPSILON);
+      }
+    }
+    Assert.assertNotEquals(0, rbm.getWeight(0, 0), 0);
+  }
+
+  @Test
+  public void testFreeEnergyMatchesEnumeration() {
+    int visible = 6;
+    int hidden = 5;
+    RestrictedBoltzmannMachine rbm = randomMachine(visible, hidden);
+    double[] v = randomVector(visible);
+    double partition = 0;
+    for (int h = 0; h < (1 << hidden); h++) {
+      double negativeEnergy = 0;
+      for (int i = 0; i < visible; i++) {
+        negativeEnergy += rbm.getVisibleBias(i) * v[i];
+      }
+      for (int j = 0; j < hidden; j++) {
+        if ((h & (1 << j)) != 0) {
+          negativeEnergy += rbm.getHiddenBias(j);
+          for (int i = 0; i < visible; i++) {
+            negativeEnergy += v[i] * rbm.getWeight(i, j);
+          }
+        }
+      }
+      partition += Math.exp(negativeEnergy);
+    }
+    Assert.assertEquals(-Math.log(partition), rbm.freeEnergy(v), EPSILON);
+  }
+
+  @Test
+  public void testFeatureExtractorSnapshot() {
+    RestrictedBoltzmannMachine rbm = randomMachine(40, 30);
+    RBMFeatureExtractor extractor = rbm.snapshot();
+    double[][] batch = new double[150][];
+    for (int n = 0; n < batch.length; n++) {
+      batch[n] = randomVector(40);
+    }
+    double[][] expected = new double[batch.length][];
+    for (int n = 0; n < batch.length; n++) {
+      expected[n] = rbm.hiddenProbabilities(batch[n]);
+    }
+    rbm.setWeight(100, 0, 0);
+
+    double[][] features = extractor.transform(batch);
+    for (int n = 0; n < batch.length; n++) {
+      Assert.assertArrayEquals(expected[n], features[n], EPSILON);
+    }
+
+    List<double[][]> streamed = new ArrayList<>();
+    extractor.transform(Arrays.asList(batch).iterator(), 64, streamed::add);
+    int n = 0;
+    for (double[][] streamedBatch : streamed) {
+      for (double[] feature : streamedBatch) {
+        Assert.assertArrayEquals(expected[n++], feature, EPSILON);
+      }
+    }
+    Assert.assertEquals(batch.length, n);
+    int batches = streamed.size();
+    try {
+      extractor.transform(Arrays.asList(batch).iterator(), 0, streamed::add);
+      Assert.fail("A zero batch size must be rejected");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(batches, streamed.size());
+    }
+  }
+
+  @Test
+  public void testModelFormatRoundTrip() throws IOException {
+    RestrictedBoltzmannMachine rbm = randomMachine(33, 600);
+    Path path = Files.createTempFile("rbm", ".model");
+    try {
+      RBMModelFormat.write(rbm, path);
+      RestrictedBoltzmannMachine read = RBMModelFormat.read(path);
+      read.setFunction(rbm.getFunction());
+      Assert.assertEquals(rbm, read);
+
+      RBMFeatureExtractor mapped = RBMModelFormat.mapFeatureExtractor(path);
+      double[][] batch = new double[70][];
+      for (int n = 0; n < batch.length; n++) {
+        batch[n] = randomVector(33);
+      }
+      double[][] features = mapped.transform(batch);
+      for (int n = 0; n < batch.length; n++) {
+        Assert.assertArrayEquals(rbm.hiddenProbabilities(batch[n]), features[n], EPSILON);
+      }
+
+      rbm.setFunction(new ActivationRamp(0.5, -0.5, 0.9, 0.1));
+      RBMModelFormat.write(rbm, path);
+      read = RBMModelFormat.read(path);
+      Assert.assertTrue(read.getFunction() instanceof ActivationRamp);
+      Assert.assertArrayEquals(rbm.getFunction().getParams(), read.getFunction().getParams(), 0);
+      Assert.assertArrayEquals(rbm.hiddenProbabilities(batch[0]),
+          RBMModelFormat.mapFeatureExtractor(path).transform(batch[0]), EPSILON);
+
+      byte[] bytes = Files.readAllBytes(path);
+      Files.write(path, Arrays.copyOf(bytes, 6 * Integer.BYTES));
+      assertUnreadable(path);
+      // A negative visible count, the third header field.
+      bytes[8] = (byte) 0xFF;
+      bytes[9] = (byte) 0xFF;
+      bytes[10] = (byte) 0xFF;
+      bytes[11] = (byte) 0xFF;
+      Files.write(path, bytes);
+      assertUnreadable(path);
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  private static void assertUnreadable(Path path) {
+    try {
+      RBMModelFormat.read(path);
+      Assert.fail("A broken model file must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      RBMModelFormat.mapFeatureExtractor(path);
+      Assert.fail("A broken model file must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFloatPrecision() throws IOException {
+    RestrictedBoltzmannMachine rbm = randomMachine(33, 600);
+    RestrictedBoltzmannMachine single = new RestrictedBoltzmannMachine(33, 600, Precision.FLOAT);
+    for (int i = 0; i < 33; i++) {
+      single.setVisibleBias(i, rbm.getVisibleBias(i));
+      for (int j = 0; j < 600; j++) {
+        single.setWeight(rbm.getWeight(i, j), i, j);
+      }
+    }
+    for (int j = 0; j < 600; j++) {
+      single.setHiddenBias(j, rbm.getHiddenBias(j));
+    }
+    double[] visible = randomVector(33);
+    Assert.assertArrayEquals(rbm.hiddenProbabilities(visible), single.hiddenProbabilities(visible),
+        1e-5);
+
+    Path path = Files.createTempFile("rbm", ".model");
+    try {
+      RBMModelFormat.write(single, path);
+      RestrictedBoltzmannMachine read = RBMModelFormat.read(path);
+      read.setFunction(single.getFunction());
+      Assert.assertEquals(Precision.FLOAT, read.getPrecision());
+      Assert.assertEquals(single, read);
+      Assert.assertArrayEquals(single.hiddenProbabilities(visible),
+          RBMModelFormat.mapFeatureExtractor(path).transform(visible), EPSILON);
+    } finally {
+      Files.delete(path);
+    }
+
+    RestrictedBoltzmannMachine trained = new RestrictedBoltzmannMachine(16, 8, Precision.FLOAT);
+    RBMTrainer trainer = stripeTrainer(trained, 16);
+    trainer.setThreadCount(4);
+    assertTrains(trainer, trained, flatten(stripeData(16, 16)));
+  }
+
+  @Test
+  public void testQuantizedFeatureExtractor() {
+    RestrictedBoltzmannMachine rbm = randomMachine(37, 300);
+    QuantizedFeatureExtractor quantized = new QuantizedFeatureExtractor(rbm);
+    double[][] batch = new double[70][];
+    for (int n = 0; n < batch.length; n++) {
+      batch[n] = randomVector(37);
+    }
+    double[][] transformed = quantized.transform(batch);
+    for (int n = 0; n < batch.length; n++) {
+      Assert.assertArrayEquals(quantized.transform(batch[n]), transformed[n], EPSILON);
+    }
+    QuantizedFeatureExtractor.Drift drift = quantized.drift(rbm, batch);
+    Assert.assertEquals(batch.length, drift.getCount());
+    Assert.assertTrue(drift.toString(), drift.getMaxError() < 0.05);
+    Assert.assertTrue(drift.toString(), drift.getMeanError() < 0.01);
+  }
+
+  @Test
+  public void testDeepBeliefNetwork() {
+    DeepBeliefNetwork dbn = new DeepBeliefNetwork(16, 8, 4);
+    dbn.train(0.1, 20, 2241, trainer -> trainer.setThreadCount(2),
+        Arrays.asList(stripeData(16, 16)));
+    List<double[]> vectors = flatten(stripeData(16, 16));
+    double untrained = reconstructionError(new RestrictedBoltzmannMachine(16, 8), vectors);
+    double trained = reconstructionError(dbn.getLayers().get(0), vectors);
+    Assert.assertTrue("Reconstruction error " + trained + " must fall well below " + untrained,
+        trained < 0.75 * untrained);
+    double[][] batch = new double[70][];
+    for (int n = 0; n < batch.length; n++) {
+      batch[n] = randomVector(16);
+    }
+    double[][] top = dbn.transform(batch);
+    for (int n = 0; n < batch.length; n++) {
+      double[] h = batch[n];
+      for (RestrictedBoltzmannMachine layer : dbn.getLayers()) {
+        h = layer.hiddenProbabilities(h);
+      }
+      Assert.assertArrayEquals(h, top[n], EPSILON);
+    }
+  }
+
+  @Test
+  public void testSamplerIsReproducible() {
+    RestrictedBoltzmannMachine rbm = randomMachine(12, 6);
+    RBMSampler sampler = new RBMSampler(rbm, 7);
+    sampler.setBurnIn(20);
+    sampler.setThinning(3);
+    double[] first = new double[100 * 5 * 12];
+    double[] second = new double[first.length];
+    sampler.sample(100, 5, first);
+    sampler.sample(100, 5, (chain, sample, states, offset) -> System.arraycopy(states, offset,
+        second, (chain * 5 + sample) * 12, 12));
+    Assert.assertArrayEquals(first, second, 0);
+    for (double x : first) {
+      Assert.assertTrue(x == 0 || x == 1);
+    }
+  }
+
+  @Test
+  public void testCheckpointResumesExactly() throws IOException {
+    Path path = Files.createTempFile("rbm", ".checkpoint");
+    try {
+      RestrictedBoltzmannMachine first = new RestrictedBoltzmannMachine(16, 8);
+      RBMTrainer firstTrainer = stripeTrainer(first, 16);
+      firstTrainer.setThreadCount(4);
+      firstTrainer.initialize(42);
+      firstTrainer.setCheckpointing(path, 3);
+      for (int iter = 0; iter < 3; iter++) {
+        firstTrainer.iterate();
+      }
+      firstTrainer.awaitCheckpoint();
+      // The checkpoint of iteration 6 would otherwise replace the one restored below.
+      firstTrainer.setCheckpointing(null, 0);
+      for (int iter = 0; iter < 3; iter++) {
+        firstTrainer.iterate();
+      }
+
+      RBMTrainer reseeded = stripeTrainer(new RestrictedBoltzmannMachine(16, 8), 16);
+      reseeded.setThreadCount(4);
+      reseeded.initialize(43);
+      try {
+        reseeded.restore(path);
+        Assert.fail("A checkpoint of a differently seeded trainer must be rejected");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("seed 42"));
+      }
+      reseeded.close();
+
+      RestrictedBoltzmannMachine second = new RestrictedBoltzmannMachine(16, 8);
+      RBMTrainer secondTrainer = stripeTrainer(second, 16);
+      secondTrainer.setThreadCount(4);
+      secondTrainer.initialize(42);
+      secondTrainer.restore(path);
+      Assert.assertEquals(3, secondTrainer.getIteration());
+      for (int iter = 0; iter < 3; iter++) {
+        secondTrainer.iterate();
+      }
+
+      second.setFunction(first.getFunction());
+      Assert.assertEquals("Resumed training must match uninterrupted training", first, second);
+      Assert.assertEquals(firstTrainer.getError(), secondTrainer.getError(), 0);
+      firstTrainer.close();
+
+      secondTrainer.getTrainingData().set(0, new ArrayList<>());
+      try {
+        secondTrainer.checkpoint(path);
+        Assert.fail("A replaced data list must be rejected");
+      } catch (IllegalStateException e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("list 0"));
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
 }
@@ -8,6 +8,9 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.haem.ml.utils.ArraySamplingStrategy;
+import com.haem.ml.utils.Measure;
+
 public class SOMTest {
 
   private static final int TEST_ITERS = 1000;
@@ -54,6 +57,152 @@ public class SOMTest {
     }
   }
 
+  @Test
+  public void testBestMatchingIndexIsNearest() {
+    Random rnd = new Random(2241);
+    SelfOrganizingMap som = new SelfOrganizingMap(21, 9, 8);
+    double[][] weights = som.getWeights();
+    for (double[] w : weights) {
+      for (int d = 0; d < w.length; d++) {
+        w[d] = rnd.nextGaussian() * (d + 1);
+      }
+    }
+    som.setWeights(weights);
+    for (int iter = 0; iter < 2; iter++) {
+      for (int n = 0; n < 200; n++) {
+        double[] input = new double[21];
+        for (int d = 0; d < input.length; d++) {
+          input[d] = rnd.nextGaussian() * (d + 1);
+        }
+        int nearest = 0;
+        for (int i = 1; i < weights.length; i++) {
+          if (Measure.euclideanDistance(input, weights[i]) < Measure
+              .euclideanDistance(input, weights[nearest])) {
+            nearest = i;
+          }
+        }
+        Assert.assertEquals(nearest, som.bestMatchingIndex(input));
+      }
+      double[][] batch = new double[150][21];
+      for (double[] input : batch) {
+        for (int d = 0; d < input.length; d++) {
+          input[d] = rnd.nextGaussian() * (d + 1);
+        }
+      }
+      int[] indices = new int[batch.length];
+      som.bestMatchingIndices(batch, indices);
+      for (int n = 0; n < batch.length; n++) {
+        Assert.assertEquals(som.bestMatchingIndex(batch[n]), indices[n]);
+      }
+      weights[17] = weights[3].clone();
+      weights[3][0] += 100;
+      som.setWeights(weights);
+    }
+
+    double[] input = weights[5].clone();
+    som.getWeights()[5][0] += 100;
+    Assert.assertEquals("The weights must be returned as a copy", 5, som.bestMatchingIndex(input));
+    double[] moved = input.clone();
+    moved[0] += 100;
+    som.setWeight(5, moved);
+    Assert.assertNotEquals("Setting a weight must update the search", 5,
+        som.bestMatchingIndex(input));
+  }
+
+  /**
+   * Returns three-dimensional samples alternating between clusters around zero and one.
+   */
+  private double[][] clusters(int count) {
+    Random rnd = new Random(2241);
+    double[][] samples = new double[count][];
+    for (int n = 0; n < samples.length; n++) {
+      double center = n % 2;
+      samples[n] = new double[] {center + 0.05 * rnd.nextGaussian(),
+          center + 0.05 * rnd.nextGaussian(), center + 0.05 * rnd.nextGaussian()};
+    }
+    return samples;
+  }
+
+  @Test
+  public void testTrainerSeparatesClusters() {
+    SelfOrganizingMap som = new SelfOrganizingMap(3, 6, 6);
+    double[][] samples = clusters(200);
+    SOMTrainer trainer = new SOMTrainer(som, new ArraySamplingStrategy(samples),
+        new GaussianLearningCoefficients(som, 20, 1.5));
+    trainer.setThreadCount(3);
+    trainer.initialize(2241);
+    for (int iter = 0; iter < 30; iter++) {
+      trainer.iterate();
+    }
+    trainer.close();
+    Assert.assertTrue(Measure.euclideanDistance(som.bestMatching(samples[0]), samples[0]) < 0.3);
+    Assert.assertTrue(Measure.euclideanDistance(som.bestMatching(samples[1]), samples[1]) < 0.3);
+  }
+
+  @Test
+  public void testThreadCountDoesNotChangeTraining() {
+    double[][] weights = null;
+    for (int threadCount : new int[] {1, 4}) {
+      SelfOrganizingMap som = new SelfOrganizingMap(3, 6, 6);
+      SOMTrainer trainer = new SOMTrainer(som, new ArraySamplingStrategy(clusters(200)),
+          new GaussianLearningCoefficients(som, 20, 1.5));
+      trainer.setThreadCount(threadCount);
+      trainer.initialize(2241);
+      for (int iter = 0; iter < 5; iter++) {
+        trainer.iterate();
+      }
+      trainer.close();
+      Assert.assertEquals(1, trainer.getThreadCount());
+      if (weights == null) {
+        weights = som.getWeights();
+      } else {
+        for (int i = 0; i < weights.length; i++) {
+          Assert.assertArrayEquals(weights[i], som.getWeights()[i], 1e-9);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNeighborhoodTableMatchesTheta() {
+    SelfOrganizingMap large = new SelfOrganizingMap(1, 100, 100);
+    Assert.assertEquals(49, new BaseLearningCoefficients(large, 10, 4).neighborhood(0).size());
+    BaseLearningCoefficients custom = new BaseLearningCoefficients(large, 10, 4) {
+      @Override
+      public double theta(int v, int u, int iteration) {
+        return v == u ? 1 : 0;
+      }
+    };
+    Assert.assertNull("A custom theta must not be tabulated", custom.neighborhood(0));
+
+    double[][] weights = null;
+    for (boolean tabulated : new boolean[] {true, false}) {
+      SelfOrganizingMap som = new SelfOrganizingMap(3, 7, 5);
+      GaussianLearningCoefficients coefficients =
+          new GaussianLearningCoefficients(som, 20, 1.5) {
+            @Override
+            public NeighborhoodTable neighborhood(int iteration) {
+              return tabulated ? super.neighborhood(iteration) : null;
+            }
+          };
+      coefficients.setCutoff(1e-12);
+      SOMTrainer trainer = new SOMTrainer(som, new ArraySamplingStrategy(clusters(100)),
+          coefficients);
+      trainer.setThreadCount(1);
+      trainer.initialize(2241);
+      for (int iter = 0; iter < 5; iter++) {
+        trainer.iterate();
+      }
+      if (weights == null) {
+        weights = som.getWeights();
+      } else {
+        for (int i = 0; i < weights.length; i++) {
+          Assert.assertArrayEquals(weights[i], som.getWeights()[i], 1e-9);
+        }
+      }
+    }
+  }
+
   private void recurseCoordinateCoverage(SelfOrganizingMap som, boolean[] found, int[] dimensions,
       double... previous) {
     if (previous.length == dimensions.length) {